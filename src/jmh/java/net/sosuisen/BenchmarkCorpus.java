@@ -0,0 +1,23 @@
+package net.sosuisen;
+
+import java.io.File;
+
+/**
+ * Locates the corpus written by {@link CorpusGenerator}.
+ */
+final class BenchmarkCorpus {
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * Returns the corpus directory: the {@code corpus.dir} system property, or
+     * {@code pdf-creator-corpus} in the temporary directory. Benchmarks create
+     * missing files on first use and reuse them afterwards.
+     *
+     * @return the corpus directory
+     */
+    static File directory() {
+        String dir = System.getProperty("corpus.dir");
+        return dir != null ? new File(dir) : new File(System.getProperty("java.io.tmpdir"), "pdf-creator-corpus");
+    }
+}
@@ -0,0 +1,173 @@
+package net.sosuisen;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates a reproducible corpus of synthetic images for the benchmarks.
+ * <p>
+ * The images look roughly like scanned photos: a gradient background, random
+ * shapes, some text and per-pixel noise, so that JPEG and PNG compress them
+ * about as well as real input. The same seed always gives the same files, and
+ * nothing is downloaded.
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec@corpus -Dcorpus.dir=/tmp/pdf-creator-corpus
+ * </pre>
+ */
+public final class CorpusGenerator {
+    /**
+     * The formats that {@link PdfCreationEngine#getImageFiles(File)} accepts.
+     */
+    public static final String[] FORMATS = { "jpg", "png", "gif", "bmp" };
+
+    /**
+     * Image sizes, from screenshots to 600 dpi A4 scans.
+     */
+    public enum SizeClass {
+        SMALL(800, 600),
+        MEDIUM(2480, 1754),
+        LARGE(4960, 3508);
+
+        final int width;
+        final int height;
+
+        SizeClass(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private CorpusGenerator() {
+    }
+
+    /**
+     * Writes one corpus folder per size class with {@code count} images each,
+     * the formats taking turns.
+     *
+     * @param args the target directory and, optionally, the number of images
+     *             per folder (default 40)
+     * @throws IOException if an image cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CorpusGenerator <directory> [images per size class]");
+            System.exit(2);
+        }
+        File root = new File(args[0]);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        for (SizeClass size : SizeClass.values()) {
+            File folder = new File(root, size.name().toLowerCase());
+            long start = System.nanoTime();
+            generateFolder(folder, count, size, 1);
+            System.out.printf("%s: %d images (%.1f s)%n", folder, count, (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /**
+     * Writes {@code count} images named {@code page1.jpg}, {@code page2.png},
+     * ... into the folder, the formats taking turns.
+     *
+     * @param folder the folder, created if needed
+     * @param count  the number of images
+     * @param size   the size of the images
+     * @param seed   the random seed
+     * @return the written files in page order
+     * @throws IOException if an image cannot be written
+     */
+    public static List<File> generateFolder(File folder, int count, SizeClass size, long seed) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String format = FORMATS[i % FORMATS.length];
+            files.add(generate(new File(folder, "page" + (i + 1) + "." + format), format, size, seed + i));
+        }
+        return files;
+    }
+
+    /**
+     * Writes one image. Existing files are kept, so a corpus is only
+     * generated once.
+     *
+     * @param file   the target file
+     * @param format the ImageIO format name
+     * @param size   the size of the image
+     * @param seed   the random seed
+     * @return the file
+     * @throws IOException if the image cannot be written
+     */
+    public static File generate(File file, String format, SizeClass size, long seed) throws IOException {
+        if (file.isFile()) {
+            return file;
+        }
+        file.getParentFile().mkdirs();
+        BufferedImage image = render(size.width, size.height, seed);
+        if (format.equals("gif")) {
+            // GIF needs a palette; let Java2D map the colors onto the default 256-color one
+            var indexed = new BufferedImage(size.width, size.height, BufferedImage.TYPE_BYTE_INDEXED);
+            Graphics2D g = indexed.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            image = indexed;
+        }
+        if (!ImageIO.write(image, format, file)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+        return file;
+    }
+
+    private static BufferedImage render(int width, int height, long seed) {
+        var random = new Random(seed);
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setPaint(new GradientPaint(0, 0, randomColor(random), width, height, randomColor(random)));
+            g.fillRect(0, 0, width, height);
+            for (int i = 0; i < 30; i++) {
+                g.setColor(randomColor(random));
+                int w = random.nextInt(width / 3) + 1;
+                int h = random.nextInt(height / 3) + 1;
+                if (random.nextBoolean()) {
+                    g.fillOval(random.nextInt(width), random.nextInt(height), w, h);
+                } else {
+                    g.fillRect(random.nextInt(width), random.nextInt(height), w, h);
+                }
+            }
+            g.setColor(Color.BLACK);
+            g.setFont(new Font(Font.SERIF, Font.PLAIN, Math.max(12, height / 40)));
+            for (int line = 1; line <= 20; line++) {
+                g.drawString("Lorem ipsum dolor sit amet " + random.nextInt(), width / 20, line * height / 22);
+            }
+        } finally {
+            g.dispose();
+        }
+
+        // Sensor-like noise keeps the images from compressing unrealistically well
+        WritableRaster raster = image.getRaster();
+        int[] row = new int[width * 3];
+        for (int y = 0; y < height; y++) {
+            raster.getPixels(0, y, width, 1, row);
+            for (int i = 0; i < row.length; i++) {
+                row[i] = Math.max(0, Math.min(255, row[i] + random.nextInt(9) - 4));
+            }
+            raster.setPixels(0, y, width, 1, row);
+        }
+        return image;
+    }
+
+    private static Color randomColor(Random random) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+}
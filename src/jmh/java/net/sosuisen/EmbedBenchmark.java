@@ -0,0 +1,74 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turns one image file into an image XObject, for every supported format and
+ * size class.
+ * <p>
+ * {@code createFromFile} is the PDFBox factory the application originally
+ * used; {@code imageEncoder} is {@link ImageEncoder}, which the pipeline uses
+ * now. Each invocation gets a fresh document so that embedded streams do not
+ * pile up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EmbedBenchmark {
+    @Param({ "jpg", "png", "gif", "bmp" })
+    public String format;
+
+    @Param({ "SMALL", "MEDIUM", "LARGE" })
+    public CorpusGenerator.SizeClass size;
+
+    private File file;
+    private PDDocument document;
+
+    @Setup
+    public void createImage() throws IOException {
+        file = CorpusGenerator.generate(
+                new File(BenchmarkCorpus.directory(), "single/" + size.name().toLowerCase() + "." + format),
+                format, size, 42);
+    }
+
+    @Setup(Level.Invocation)
+    public void openDocument() {
+        document = new PDDocument();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeDocument() throws IOException {
+        document.close();
+    }
+
+    @Benchmark
+    public PDImageXObject createFromFile() throws IOException {
+        return PDImageXObject.createFromFile(file.getPath(), document);
+    }
+
+    @Benchmark
+    public PDImageXObject imageEncoder() throws IOException {
+        return ImageEncoder.createImage(file, document);
+    }
+}
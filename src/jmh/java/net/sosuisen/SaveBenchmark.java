@@ -0,0 +1,105 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes whole documents.
+ * <p>
+ * {@code save} measures {@code PDDocument.save} alone, on a document whose
+ * pages were built before the invocation, and {@code saveToOutputFile} the
+ * same through {@link OutputFile}, with the data forced to the device before
+ * the rename. {@code create} measures the full
+ * {@link PdfCreationEngine#create} run, from listing the folder to the written
+ * file, without the image cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SaveBenchmark {
+    @Param({ "SMALL", "MEDIUM" })
+    public CorpusGenerator.SizeClass size;
+
+    @Param({ "20" })
+    public int pageCount;
+
+    private File folder;
+    private List<File> images;
+    private File output;
+
+    @Setup
+    public void createCorpus() throws IOException {
+        folder = new File(BenchmarkCorpus.directory(), "folders/" + size.name().toLowerCase() + "-" + pageCount);
+        images = CorpusGenerator.generateFolder(folder, pageCount, size, 7);
+        output = Files.createTempFile("save-benchmark", ".pdf").toFile();
+    }
+
+    @TearDown
+    public void deleteOutput() {
+        output.delete();
+        PdfCreationEngine.outputFile(folder, "benchmark").delete();
+    }
+
+    @Benchmark
+    public File save(BuiltDocument built) throws IOException {
+        built.document.save(output);
+        return output;
+    }
+
+    @Benchmark
+    public File saveToOutputFile(BuiltDocument built) throws IOException {
+        try (var file = OutputFile.create(output, SyncPolicy.FILE, () -> false)) {
+            built.document.save(file.stream());
+            file.commit();
+        }
+        return output;
+    }
+
+    @Benchmark
+    public File create() throws Exception {
+        return new PdfCreationEngine().create(folder, "benchmark", PdfCreationListener.NONE);
+    }
+
+    /**
+     * A document with one page per corpus image, rebuilt before every
+     * invocation of {@link SaveBenchmark#save}.
+     */
+    @State(Scope.Thread)
+    public static class BuiltDocument {
+        private PDDocument document;
+
+        @Setup(Level.Invocation)
+        public void build(SaveBenchmark benchmark) throws IOException {
+            document = new PDDocument();
+            for (File image : benchmark.images) {
+                PdfCreationEngine.addImagePage(document, ImageEncoder.createImage(image, document), null);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            document.close();
+        }
+    }
+}
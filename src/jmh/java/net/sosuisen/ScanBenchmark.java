@@ -0,0 +1,64 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lists and sorts a folder with {@link PdfCreationEngine#getImageFiles(File)}.
+ * <p>
+ * The folder holds empty files only, since the scan looks at names and file
+ * types, plus one non-image file per ten images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({ "1000", "10000" })
+    public int fileCount;
+
+    private File folder;
+
+    @Setup
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("scan-benchmark").toFile();
+        for (int i = 0; i < fileCount; i++) {
+            String format = CorpusGenerator.FORMATS[i % CorpusGenerator.FORMATS.length];
+            Files.createFile(new File(folder, "scan_" + i + "." + format).toPath());
+            if (i % 10 == 0) {
+                Files.createFile(new File(folder, "notes_" + i + ".txt").toPath());
+            }
+        }
+    }
+
+    @TearDown
+    public void deleteFolder() {
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    @Benchmark
+    public List<File> getImageFiles() throws IOException, InterruptedException {
+        return PdfCreationEngine.getImageFiles(folder);
+    }
+}
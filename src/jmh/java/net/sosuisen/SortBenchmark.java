@@ -0,0 +1,75 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorts shuffled file names in natural order, either with the pairwise
+ * {@link PdfCreationEngine#naturalCompare} or with precomputed
+ * {@link NaturalSortKey}s as {@code getImageFiles} does.
+ * <p>
+ * The names mix the patterns seen in real folders: camera names
+ * ({@code IMG_0042.jpg}), unpadded page numbers ({@code page42.png}),
+ * volume/page pairs ({@code vol3_p17.gif}) and mixed case. A single sort of a
+ * million names takes long enough that each measurement is one sort.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SortBenchmark {
+    @Param({ "10000", "100000", "1000000" })
+    public int nameCount;
+
+    private File[] files;
+
+    @Setup
+    public void createNames() {
+        var random = new Random(1);
+        List<File> names = new ArrayList<>(nameCount);
+        for (int i = 0; i < nameCount; i++) {
+            String name = switch (i % 4) {
+                case 0 -> String.format("IMG_%04d.jpg", i % 10000);
+                case 1 -> "page" + i + ".png";
+                case 2 -> "vol" + (i / 1000) + "_p" + (i % 1000) + ".gif";
+                default -> (random.nextBoolean() ? "Scan " : "scan ") + i + ".bmp";
+            };
+            names.add(new File(name));
+        }
+        Collections.shuffle(names, random);
+        files = names.toArray(File[]::new);
+    }
+
+    @Benchmark
+    public File[] naturalSort() {
+        File[] copy = files.clone();
+        Arrays.sort(copy, PdfCreationEngine::naturalCompare);
+        return copy;
+    }
+
+    @Benchmark
+    public List<File> naturalSortKeys() {
+        List<File> copy = new ArrayList<>(Arrays.asList(files));
+        NaturalSortKey.sort(copy, File::getName);
+        return copy;
+    }
+}
@@ -0,0 +1,133 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the start-up time of the packaged application in fresh JVMs, with
+ * and without the class-data-sharing archive.
+ * <p>
+ * Time to first page is measured with the command-line launcher on a folder
+ * with one synthetic A4 scan: the JVM uptime at the start of the run plus the
+ * time to the first page, both taken from the run report. Time to window
+ * starts the JavaFX application with {@code -Dpdf-creator.exitAfterShown=true}
+ * and is skipped when there is no display. JMH is not used because every
+ * sample needs a new process.
+ *
+ * <pre>
+ * mvn package
+ * mvn -Pjmh test-compile exec:exec@startup -Dstartup.runs=10
+ * </pre>
+ */
+public final class StartupTimer {
+    private static final Pattern WINDOW = Pattern.compile("time-to-window: (\\d+) ms");
+    private static final Pattern UPTIME = Pattern.compile("\"jvmUptimeMillis\": ([\\d.]+)");
+    private static final Pattern FIRST_PAGE = Pattern.compile("\"firstPageMillis\": ([\\d.]+)");
+
+    private StartupTimer() {
+    }
+
+    /**
+     * @param args the packaged application directory ({@code target/app}) and,
+     *             optionally, the number of runs per variant (default 5)
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: StartupTimer <app dir> [runs]");
+            System.exit(2);
+        }
+        File appDir = new File(args[0]);
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File jar = findJar(appDir);
+        File archive = new File(appDir, "pdf-creator.jsa");
+        if (!archive.isFile()) {
+            System.err.println("No archive at " + archive + "; run mvn package first");
+            System.exit(1);
+        }
+
+        File folder = Files.createTempDirectory("pdf-creator-startup").toFile();
+        CorpusGenerator.generate(new File(folder, "page.jpg"), "jpg", CorpusGenerator.SizeClass.MEDIUM, 42);
+        boolean display = !java.awt.GraphicsEnvironment.isHeadless();
+
+        for (boolean cds : new boolean[] { false, true }) {
+            List<String> jvm = new ArrayList<>(List.of(javaExecutable(), "-Xshare:auto"));
+            if (cds) {
+                jvm.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+            }
+            long[] firstPage = new long[runs];
+            long[] window = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                firstPage[i] = timeToFirstPage(jvm, jar, folder);
+                window[i] = display ? timeToWindow(jvm, jar) : -1;
+            }
+            String variant = cds ? "with archive" : "no archive";
+            System.out.printf(Locale.ROOT, "%-13s time-to-first-page %s%n", variant, summary(firstPage));
+            System.out.printf(Locale.ROOT, "%-13s time-to-window     %s%n", variant,
+                    display ? summary(window) : "skipped (no display)");
+        }
+        for (File file : folder.listFiles()) {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    private static long timeToFirstPage(List<String> jvm, File jar, File folder)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(jvm);
+        command.addAll(List.of("-cp", jar.getAbsolutePath(), "net.sosuisen.CliLauncher", "--no-cache",
+                "--title", "startup", folder.getAbsolutePath()));
+        run(command);
+        String report = Files.readString(new File(folder, "startup.report.json").toPath(), StandardCharsets.UTF_8);
+        return Math.round(number(UPTIME, report) + number(FIRST_PAGE, report));
+    }
+
+    private static long timeToWindow(List<String> jvm, File jar) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(jvm);
+        command.addAll(List.of("-D" + App.EXIT_AFTER_SHOWN + "=true", "-jar", jar.getAbsolutePath()));
+        return Math.round(number(WINDOW, run(command)));
+    }
+
+    private static String run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IOException("Failed: " + String.join(" ", command) + "\n" + output);
+        }
+        return output;
+    }
+
+    private static double number(Pattern pattern, String text) throws IOException {
+        Matcher matcher = pattern.matcher(text);
+        if (!matcher.find()) {
+            throw new IOException("No " + pattern + " in:\n" + text);
+        }
+        return Double.parseDouble(matcher.group(1));
+    }
+
+    private static String summary(long[] millis) {
+        long[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "median %5d ms  min %5d ms  max %5d ms", sorted[sorted.length / 2],
+                sorted[0], sorted[sorted.length - 1]);
+    }
+
+    private static File findJar(File appDir) throws IOException {
+        File[] jars = appDir.listFiles((dir, name) -> name.startsWith("pdf-creator-") && name.endsWith(".jar"));
+        if (jars == null || jars.length != 1) {
+            throw new IOException("Expected one pdf-creator-*.jar in " + appDir);
+        }
+        return jars[0];
+    }
+
+    private static String javaExecutable() {
+        return new File(System.getProperty("java.home"), "bin/java").getPath();
+    }
+}
@@ -1,5 +1,7 @@
 package net.sosuisen;
 
+import java.lang.management.ManagementFactory;
+
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
@@ -10,6 +12,13 @@ import javafx.stage.Stage;
  * JavaFX MVC(Model-View-Controller) application
  */
 public class App extends Application {
+    /**
+     * System property that makes the application print the time from JVM
+     * start to the shown window and exit, for measuring start-up time.
+     */
+    static final String EXIT_AFTER_SHOWN = "pdf-creator.exitAfterShown";
+
+    private Model model;
 
     /**
      * Called when the application is started.
@@ -18,13 +27,26 @@ public class App extends Application {
      */
     @Override
     public void start(Stage stage) {
+        // PDFBox and ImageIO are initialized while the user picks a folder
+        WarmUp.startInBackground();
+
         // Model
-        var model = new Model();
+        model = new Model();
 
         // View
         showMainWindow(stage, model);
     }
 
+    /**
+     * Called when the application exits.
+     */
+    @Override
+    public void stop() {
+        if (model != null) {
+            model.close();
+        }
+    }
+
     /**
      * Shows the main window of the application.
      * 
@@ -42,6 +64,12 @@ public class App extends Application {
                     .build();
             stage.setScene(scene);
             stage.setTitle("PDF Creator");
+            if (Boolean.getBoolean(EXIT_AFTER_SHOWN)) {
+                stage.setOnShown(e -> {
+                    System.out.println("time-to-window: " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms");
+                    Platform.exit();
+                });
+            }
             stage.show();
         } catch (Exception e) {
             showStartupErrorAndExit(e);
@@ -0,0 +1,282 @@
+package net.sosuisen;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Adds pages to the end of an existing PDF as an incremental update.
+ * <p>
+ * The existing file is opened without reading its image streams, and
+ * {@link #newImages(List)} picks out the images that none of its pages was
+ * made from, as recorded by {@link PageSources}. The new pages are written
+ * after the end of the file together with a cross-reference section for the
+ * new and changed objects only: the page tree root, the catalog and the
+ * document information. The existing bytes are neither read nor rewritten,
+ * so adding ten pages costs about as much as writing those ten pages.
+ * <p>
+ * The update is assembled in memory like any other document and written with
+ * one append when the run finishes; if that fails, the file is cut back to
+ * its old length. PDFBox's incremental writer buffers the whole update on the
+ * heap before writing it, so this costs about as much heap as the new pages
+ * take in the file, even in low-memory mode. Pages can only be added at the end, so new images that
+ * sort before existing ones come after them in the PDF.
+ */
+class AppendWriter implements PageWriter {
+    private final File file;
+    private final File folder;
+    private final PdfCreationOptions options;
+    private final RunMetrics metrics;
+    private final BooleanSupplier cancelled;
+    private final PDDocument document;
+    private final long originalLength;
+    private final EmbeddedImages embedded;
+    private final Calendar modified = Calendar.getInstance();
+    private int addedPages;
+
+    private AppendWriter(File file, File folder, PdfCreationOptions options, RunMetrics metrics,
+            BooleanSupplier cancelled, PDDocument document, long originalLength) {
+        this.file = file;
+        this.folder = folder;
+        this.options = options;
+        this.metrics = metrics;
+        this.cancelled = cancelled;
+        this.document = document;
+        this.originalLength = originalLength;
+        this.embedded = new EmbeddedImages(options.getNearDuplicateDistance());
+    }
+
+    /**
+     * Opens the PDF that a run for the given folder and title would write.
+     *
+     * @param folder    the image folder
+     * @param pdfTitle  the PDF title, with or without the .pdf extension
+     * @param options   the creation settings
+     * @param metrics   the metrics to record writing to
+     * @param cancelled polled before the update is written
+     * @return the writer, or null if there is no such PDF yet
+     * @throws IOException if the PDF cannot be read
+     */
+    static AppendWriter open(File folder, String pdfTitle, PdfCreationOptions options, RunMetrics metrics,
+            BooleanSupplier cancelled) throws IOException {
+        File file = PdfCreationEngine.outputFile(folder, pdfTitle);
+        if (!file.isFile()) {
+            return null;
+        }
+        long length = file.length();
+        PDDocument document = PDDocument.load(file, options.memoryUsageSetting());
+        return new AppendWriter(file, folder, options, metrics, cancelled, document, length);
+    }
+
+    /**
+     * Picks out the images that the PDF does not contain yet. For a PDF whose
+     * pages record no sources, as written before sources were recorded, the
+     * first as many images as it has pages are taken to be in it.
+     *
+     * @param imageFiles the images of the folder in page order
+     * @return the images to add, in page order
+     */
+    List<File> newImages(List<File> imageFiles) {
+        Set<String> sources = new HashSet<>();
+        int pages = 0;
+        for (PDPage page : document.getPages()) {
+            String source = PageSources.read(page);
+            if (source != null) {
+                sources.add(source);
+            }
+            pages++;
+        }
+        if (sources.isEmpty()) {
+            return imageFiles.subList(Math.min(pages, imageFiles.size()), imageFiles.size());
+        }
+        List<File> images = new ArrayList<>();
+        for (File imageFile : imageFiles) {
+            if (!sources.contains(PageSources.name(folder, imageFile))) {
+                images.add(imageFile);
+            }
+        }
+        return images;
+    }
+
+    @Override
+    public AddedPage addPage(PreparedImage prepared) throws IOException {
+        // The pipeline only sees the new images, so a duplicate's original is always in this document
+        PDImageXObject image = embedded.find(prepared);
+        ImageSource source = ImageSource.DUPLICATE;
+        long importedBytes = 0;
+        if (image == null) {
+            image = prepared.importInto(document);
+            source = prepared.getSource();
+            importedBytes = image.getCOSObject().getLength();
+            embedded.add(prepared, image);
+        }
+        PDPage page = PdfCreationEngine.addImagePage(document, image, prepared.getPageSize());
+        PageSources.record(page, PageSources.name(folder, prepared.getFile()), modified);
+        addedPages++;
+        return new AddedPage(source, importedBytes);
+    }
+
+    /**
+     * Appends the update to the PDF. Without new pages the file is left as it
+     * is.
+     *
+     * @return the PDF
+     * @throws IOException           if the PDF changed since it was opened or
+     *                               the update cannot be written
+     * @throws CancellationException if the run was cancelled
+     */
+    @Override
+    public List<File> finish() throws IOException {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException();
+        }
+        if (addedPages == 0) {
+            return List.of(file);
+        }
+        // The path from the trailer to every changed object must be marked
+        document.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+        document.getPages().getCOSObject().setNeedToBeUpdated(true);
+        PDDocumentInformation information = document.getDocumentInformation();
+        information.setModificationDate(modified);
+        information.getCOSObject().setNeedToBeUpdated(true);
+
+        var span = metrics.start(RunMetrics.Stage.SAVE, file.getName());
+        long bytes;
+        long writeNanos;
+        long syncNanos;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (channel.size() != originalLength) {
+                throw new IOException(file + " was changed while pages were added to it");
+            }
+            long start = System.nanoTime();
+            try {
+                // Not closed, which would close the channel; the writer holds nothing else
+                OutputStream out = Channels.newOutputStream(channel.position(originalLength));
+                // In incremental mode the writer buffers the whole update on the heap before it writes to out
+                new COSWriter(out, new OriginalLength(originalLength)).write(document);
+                long written = System.nanoTime();
+                writeNanos = written - start;
+                if (options.getSyncPolicy() != SyncPolicy.NONE) {
+                    channel.force(true);
+                }
+                syncNanos = System.nanoTime() - written;
+            } catch (IOException | RuntimeException e) {
+                channel.truncate(originalLength);
+                throw e;
+            }
+            bytes = channel.size() - originalLength;
+        }
+        span.end(bytes);
+        metrics.outputWritten(bytes, writeNanos, syncNanos);
+        return List.of(file);
+    }
+
+    /**
+     * Closes the PDF. The file is only changed by {@link #finish()}. May be
+     * called more than once.
+     */
+    @Override
+    public void close() {
+        try {
+            document.close();
+        } catch (IOException ignore) {
+            // Only the scratch buffers and the read handle are released here.
+        }
+    }
+
+    /**
+     * Stands in for the existing file, of which {@link COSWriter} needs only
+     * the length to number the new offsets. Given the file itself, it would
+     * copy all of it in front of the update.
+     */
+    private static final class OriginalLength implements RandomAccessRead {
+        private final long length;
+
+        OriginalLength(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b) {
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) {
+            return -1;
+        }
+
+        @Override
+        public long getPosition() {
+            return length;
+        }
+
+        @Override
+        public void seek(long position) {
+            // Always at the end
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public int peek() {
+            return -1;
+        }
+
+        @Override
+        public void rewind(int bytes) {
+            // Always at the end
+        }
+
+        @Override
+        public byte[] readFully(int length) throws IOException {
+            throw new EOFException();
+        }
+
+        @Override
+        public boolean isEOF() {
+            return true;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
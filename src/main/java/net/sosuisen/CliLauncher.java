@@ -0,0 +1,308 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Command-line launcher that creates PDFs without starting the JavaFX toolkit.
+ * <p>
+ * Each folder becomes one PDF saved inside that folder. Several folders are
+ * processed at the same time, up to the limit given with {@code --jobs}. With
+ * {@code --watch} the launcher keeps running and rebuilds a folder's PDF
+ * whenever images are added or changed.
+ *
+ * <pre>
+ * java -cp pdf-creator-1.0-SNAPSHOT.jar net.sosuisen.CliLauncher --jobs 4 scans/0001 scans/0002 ...
+ * </pre>
+ */
+public class CliLauncher {
+    /**
+     * How often progress is printed for each folder.
+     */
+    private static final double CONSOLE_FRAMES_PER_SECOND = 1;
+
+    private static final String USAGE = """
+            Usage: CliLauncher [options] <folder>...
+              -t, --title <title>         PDF title (default: the folder name)
+              -j, --jobs <n>              folders processed at the same time (default: 2)
+              -w, --workers <n>           images decoded/encoded at once across all folders
+                                          (default: number of processors)
+                  --memory-budget <MiB>   read-ahead budget shared by all folders
+                  --low-memory            keep the output document in a scratch file
+                  --max-main-memory <MiB> heap ceiling in low-memory mode (0: scratch file only)
+                  --cache-dir <dir>       cache of converted images (default: ~/.pdf-creator/cache)
+                  --cache-max <MiB>       disk cap of the cache (default: 2048)
+                  --no-cache              do not use the cache
+              -r, --recursive             include images in subfolders, folder by folder
+                  --extensions-only       only take files with an image extension
+              -p, --profile <name>        output profile: original (default), standard, small, gray
+                  --max-pixels <n>        reduce images to at most n pixels per side
+                  --dpi <n>               reduce images that record a higher resolution to n dpi
+                  --jpeg-quality <0-1>    JPEG quality of reduced images
+                  --grayscale             convert images to grayscale
+                  --detect-mono <0-255>   embed black-and-white pages as CCITT G4 and gray pages as
+                                          8-bit gray; n is how far a pixel may be from gray, black
+                                          or white in levels (try 32 for JPEG scans)
+                  --no-dedupe             embed identical images once per page instead of sharing them
+                  --near-duplicates <n>   also share images of the same size whose perceptual hashes
+                                          differ in at most n of 64 bits (lossy; try 2 to 4)
+                  --no-report             do not write <title>.report.json next to the PDF
+                  --fsync <policy>        none, file (default: flush the PDF to disk before it
+                                          replaces the old one) or directory (also the rename)
+                  --resume                journal the pages as they are added; after a crash or
+                                          Ctrl+C, run again with --resume to go on from there
+                  --append                keep an existing PDF and add only the images it lacks
+                                          to its end, without rewriting it
+                  --volume-size <MiB>     split into <title>_001.pdf, ... of at most this size
+                  --volume-pages <n>      split into volumes of at most n pages
+                  --watch                 keep running and rebuild a PDF when its folder changes;
+                                          unchanged images are taken from the cache
+                  --settle <seconds>      quiet time before a rebuild in watch mode (default: 2)
+              -h, --help                  show this help
+            """;
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the command line and returns the process exit code.
+     *
+     * @param args the command-line arguments
+     * @return 0 if every folder was converted, 1 if any failed, 2 on usage errors
+     */
+    static int run(String[] args) {
+        String title = null;
+        int jobs = 2;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long memoryBudget = ImagePipeline.DEFAULT_MEMORY_BUDGET;
+        Path cacheDirectory = ImageCache.DEFAULT_DIRECTORY;
+        long cacheMaxBytes = ImageCache.DEFAULT_MAX_BYTES;
+        var options = PdfCreationOptions.builder();
+        OutputProfile profile = OutputProfile.ORIGINAL;
+        Integer maxPixels = null;
+        Integer dpi = null;
+        Float jpegQuality = null;
+        boolean grayscale = false;
+        int monochromeTolerance = -1;
+        boolean watch = false;
+        Duration settleTime = FolderWatcher.DEFAULT_SETTLE_TIME;
+        List<File> folders = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-t", "--title" -> title = value(args, ++i, arg);
+                    case "-j", "--jobs" -> jobs = Integer.parseInt(value(args, ++i, arg));
+                    case "-w", "--workers" -> workers = Integer.parseInt(value(args, ++i, arg));
+                    case "--memory-budget" -> memoryBudget = mebibytes(value(args, ++i, arg));
+                    case "--low-memory" -> options.lowMemory(true);
+                    case "--max-main-memory" -> options.maxMainMemory(mebibytes(value(args, ++i, arg)));
+                    case "--cache-dir" -> cacheDirectory = Path.of(value(args, ++i, arg));
+                    case "--cache-max" -> cacheMaxBytes = mebibytes(value(args, ++i, arg));
+                    case "--no-cache" -> cacheDirectory = null;
+                    case "-r", "--recursive" -> options.recursive(true);
+                    case "--extensions-only" -> options.detectContent(false);
+                    case "-p", "--profile" -> profile = OutputProfile.forId(value(args, ++i, arg));
+                    case "--max-pixels" -> maxPixels = Integer.parseInt(value(args, ++i, arg));
+                    case "--dpi" -> dpi = Integer.parseInt(value(args, ++i, arg));
+                    case "--jpeg-quality" -> jpegQuality = Float.parseFloat(value(args, ++i, arg));
+                    case "--grayscale" -> grayscale = true;
+                    case "--detect-mono" -> monochromeTolerance = Integer.parseInt(value(args, ++i, arg));
+                    case "--no-dedupe" -> options.deduplicate(false);
+                    case "--near-duplicates" -> options.nearDuplicateDistance(Integer.parseInt(value(args, ++i, arg)));
+                    case "--no-report" -> options.report(false);
+                    case "--fsync" -> options.syncPolicy(syncPolicy(value(args, ++i, arg)));
+                    case "--resume" -> options.resumable(true);
+                    case "--append" -> options.append(true);
+                    case "--volume-size" -> options.volumeMaxBytes(mebibytes(value(args, ++i, arg)));
+                    case "--volume-pages" -> options.volumePages(Integer.parseInt(value(args, ++i, arg)));
+                    case "--watch" -> watch = true;
+                    case "--settle" -> settleTime = Duration.ofMillis(
+                            Math.round(Double.parseDouble(value(args, ++i, arg)) * 1000));
+                    case "-h", "--help" -> {
+                        System.out.print(USAGE);
+                        return 0;
+                    }
+                    default -> {
+                        if (arg.startsWith("-")) {
+                            throw new IllegalArgumentException("Unknown option: " + arg);
+                        }
+                        folders.add(new File(arg));
+                    }
+                }
+            }
+            if (folders.isEmpty()) {
+                throw new IllegalArgumentException("No folder specified");
+            }
+            if (title != null && folders.size() > 1) {
+                throw new IllegalArgumentException("--title can only be used with a single folder");
+            }
+            if (jobs <= 0 || workers <= 0 || memoryBudget <= 0) {
+                throw new IllegalArgumentException("--jobs, --workers and --memory-budget must be positive");
+            }
+            if (maxPixels != null || dpi != null || jpegQuality != null || grayscale) {
+                // Individual settings override the chosen profile
+                profile = new OutputProfile("custom", "カスタム",
+                        maxPixels != null ? maxPixels : profile.maxPixels(),
+                        dpi != null ? dpi : profile.targetDpi(),
+                        jpegQuality != null ? jpegQuality : profile.jpegQuality(),
+                        grayscale || profile.grayscale());
+            }
+            if (monochromeTolerance >= 0) {
+                profile = profile.withMonochromeTolerance(monochromeTolerance);
+            }
+            options.profile(profile);
+            // Rejects contradicting options, such as --append with volumes
+            options.build();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return 2;
+        }
+
+        if (cacheDirectory != null) {
+            try {
+                options.imageCache(ImageCache.open(cacheDirectory, cacheMaxBytes));
+            } catch (IOException e) {
+                System.err.println("Could not open image cache: " + e.getMessage());
+            }
+        }
+
+        // All folders share one encode limit and one read-ahead budget
+        var engine = new PdfCreationEngine(options.build(),
+                new Semaphore(workers), new MemoryBudget(memoryBudget));
+        var jobPermits = new Semaphore(jobs);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (File folder : folders) {
+                String pdfTitle = title != null ? title : folder.getAbsoluteFile().getName();
+                results.add(executor.submit(() -> {
+                    jobPermits.acquire();
+                    try {
+                        return convert(engine, folder, pdfTitle);
+                    } finally {
+                        jobPermits.release();
+                    }
+                }));
+            }
+            int failed = 0;
+            for (Future<Boolean> result : results) {
+                if (!result.get()) {
+                    failed++;
+                }
+            }
+            System.out.println("Done: " + (folders.size() - failed) + " succeeded, " + failed + " failed");
+            if (watch) {
+                watch(engine, folders, title, jobPermits, settleTime);
+            }
+            return failed == 0 ? 0 : 1;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 1;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Rebuilds each folder's PDF whenever its images change, until the
+     * process is stopped.
+     */
+    private static void watch(PdfCreationEngine engine, List<File> folders, String title, Semaphore jobPermits,
+            Duration settleTime) throws IOException, InterruptedException {
+        if (engine.getOptions().getImageCache() == null) {
+            System.err.println("Warning: without a cache every rebuild encodes all images again");
+        }
+        List<FolderWatcher> watchers = new ArrayList<>();
+        try {
+            for (File folder : folders) {
+                String pdfTitle = title != null ? title : folder.getAbsoluteFile().getName();
+                watchers.add(new FolderWatcher(folder.toPath(), engine.getOptions().isRecursive(), settleTime, () -> {
+                    try {
+                        jobPermits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        convert(engine, folder, pdfTitle);
+                    } finally {
+                        jobPermits.release();
+                    }
+                }));
+            }
+            System.out.println("Watching " + folders.size() + " folder(s); press Ctrl+C to stop.");
+            for (FolderWatcher watcher : watchers) {
+                watcher.join();
+            }
+        } finally {
+            watchers.forEach(FolderWatcher::close);
+        }
+    }
+
+    private static boolean convert(PdfCreationEngine engine, File folder, String pdfTitle) {
+        // One line per second while pages are added; short runs print the summary only
+        try (var reporter = new ProgressReporter(CONSOLE_FRAMES_PER_SECOND, snapshot -> {
+            if (snapshot.phase() == ProgressSnapshot.Phase.PROCESSING) {
+                System.out.println(folder + ": " + snapshot.message());
+            }
+        })) {
+            List<File> pdfFiles = engine.createVolumes(folder, pdfTitle, reporter);
+            RunMetrics metrics = reporter.getMetrics();
+            double seconds = metrics.getElapsedNanos() / 1e9;
+            LatencyHistogram latency = metrics.getImageLatency();
+            double writeSeconds = (metrics.getOutputWriteNanos() + metrics.getOutputSyncNanos()) / 1e9;
+            System.out.printf("%s: %s (%.1f s, %.1f MB/s in, %.1f MB/s written, image p50 %.0f ms / p99 %.0f ms,"
+                    + " cache %d hit / %d miss, %d duplicate, %d resumed)%n", folder, describe(pdfFiles), seconds,
+                    seconds > 0 ? metrics.getBytesIn() / 1e6 / seconds : 0,
+                    writeSeconds > 0 ? metrics.getOutputBytes() / 1e6 / writeSeconds : 0,
+                    latency.getPercentile(0.5) / 1e6,
+                    latency.getPercentile(0.99) / 1e6, metrics.getImageCount(ImageSource.CACHED),
+                    metrics.getImageCount(ImageSource.ENCODED), metrics.getImageCount(ImageSource.DUPLICATE),
+                    metrics.getImageCount(ImageSource.RESUMED));
+            return true;
+        } catch (Exception e) {
+            System.err.println(folder + ": Error creating PDF: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static String describe(List<File> pdfFiles) {
+        if (pdfFiles.size() == 1) {
+            return pdfFiles.get(0).getName();
+        }
+        return pdfFiles.get(0).getName() + " .. " + pdfFiles.get(pdfFiles.size() - 1).getName()
+                + " (" + pdfFiles.size() + " volumes)";
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static long mebibytes(String value) {
+        return Long.parseLong(value) * 1024 * 1024;
+    }
+
+    private static SyncPolicy syncPolicy(String value) {
+        return switch (value) {
+            case "none" -> SyncPolicy.NONE;
+            case "file" -> SyncPolicy.FILE;
+            case "directory" -> SyncPolicy.FILE_AND_DIRECTORY;
+            default -> throw new IllegalArgumentException("Unknown fsync policy: " + value);
+        };
+    }
+}
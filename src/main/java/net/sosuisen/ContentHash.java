@@ -0,0 +1,42 @@
+package net.sosuisen;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 digests used to identify image content.
+ */
+public final class ContentHash {
+    private ContentHash() {
+    }
+
+    /**
+     * @param data the bytes to hash
+     * @return the lowercase hex SHA-256 digest of the bytes
+     */
+    public static String of(byte[] data) {
+        return HexFormat.of().formatHex(newDigest().digest(data));
+    }
+
+    /**
+     * @param text the text to hash, encoded as UTF-8
+     * @return the lowercase hex SHA-256 digest of the text
+     */
+    public static String of(String text) {
+        return of(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return a new SHA-256 message digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Converts images sent over HTTP into PDFs, for tools that need PDFs without
+ * anyone opening the window.
+ * <p>
+ * The server listens on the loopback address only and runs every exchange
+ * on its own virtual thread. It answers two paths:
+ * <ul>
+ * <li>{@code POST /pdf?title=<title>} with the images as a
+ * {@code multipart/form-data} body, in which zip files are unpacked and a
+ * {@code title} field may stand in for the parameter, or with one zip file
+ * as an {@code application/zip} body. The response is the PDF. With
+ * {@code folder=<path>} instead of a body, a local folder is converted the
+ * way {@link CliLauncher} does it, if the server allows that and the request
+ * carries the {@link #getFolderToken() folder token}. An optional
+ * {@code profile} parameter selects an {@link OutputProfile}.</li>
+ * <li>{@code GET /metrics} returns counters and gauges in the Prometheus
+ * text format.</li>
+ * </ul>
+ * Web pages the user opens can reach the loopback address too, so requests
+ * are refused with 403 unless their {@code Host} header names the loopback
+ * address and port of the server, which defeats DNS rebinding, and any
+ * {@code Origin} header is that same address, which refuses cross-site form
+ * posts.
+ * At most {@code maxConcurrentJobs} conversions run at a time and at most
+ * {@code maxQueuedRequests} more requests upload or wait for a turn; further
+ * requests are turned away with 503 and a {@code Retry-After} header instead
+ * of piling up uploads on disk. As in {@link JobScheduler}, all conversions
+ * share one limit of concurrent decodes/encodes and one {@link MemoryBudget}
+ * for read-ahead.
+ */
+public class ConversionServer implements AutoCloseable {
+    /**
+     * How long a turned-away client is asked to wait, in seconds.
+     */
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final PdfCreationOptions options;
+    private final Semaphore encodePermits;
+    private final MemoryBudget memoryBudget;
+    private final Semaphore jobPermits;
+    private final int maxAdmitted;
+    private final long maxUploadBytes;
+    private final boolean allowFolders;
+    private final String folderToken;
+    private final Set<String> localHosts;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder pdfBytes = new LongAdder();
+    private final LatencyHistogram conversionNanos = new LatencyHistogram();
+    private volatile boolean closed;
+
+    /**
+     * Creates a server on the loopback address. It accepts requests once
+     * {@link #start()} is called.
+     *
+     * @param port              the port, or 0 for any free port
+     * @param options           the creation settings of every conversion;
+     *                          the worker count and memory budget are
+     *                          shared by all conversions
+     * @param maxConcurrentJobs the number of conversions that run at once
+     * @param maxQueuedRequests the number of further requests that may upload
+     *                          or wait for a turn
+     * @param maxUploadBytes    the largest upload, counted after unpacking
+     * @param allowFolders      whether local folders may be converted by path,
+     *                          by clients that send the
+     *                          {@link #getFolderToken() folder token}
+     * @throws IOException if the port cannot be bound
+     */
+    public ConversionServer(int port, PdfCreationOptions options, int maxConcurrentJobs, int maxQueuedRequests,
+            long maxUploadBytes, boolean allowFolders) throws IOException {
+        if (maxConcurrentJobs <= 0 || maxQueuedRequests < 0 || maxUploadBytes <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.options = options;
+        this.encodePermits = new Semaphore(options.getWorkers());
+        this.memoryBudget = new MemoryBudget(options.getMemoryBudget());
+        this.jobPermits = new Semaphore(maxConcurrentJobs, true);
+        this.maxAdmitted = maxConcurrentJobs + maxQueuedRequests;
+        this.maxUploadBytes = maxUploadBytes;
+        this.allowFolders = allowFolders;
+        byte[] token = new byte[16];
+        new SecureRandom().nextBytes(token);
+        this.folderToken = allowFolders ? HexFormat.of().formatHex(token) : null;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        int boundPort = server.getAddress().getPort();
+        this.localHosts = boundPort == 80
+                ? Set.of("localhost", "127.0.0.1", "[::1]", "localhost:80", "127.0.0.1:80", "[::1]:80")
+                : Set.of("localhost:" + boundPort, "127.0.0.1:" + boundPort, "[::1]:" + boundPort);
+        server.setExecutor(executor);
+        server.createContext("/pdf", this::handleConversion);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return the address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Returns the token that folder conversions must send as
+     * {@code Authorization: Bearer <token>}. It is made anew each time a
+     * server is created, so only whoever started the server knows it.
+     *
+     * @return the token, or null if local folders may not be converted
+     */
+    public String getFolderToken() {
+        return folderToken;
+    }
+
+    /**
+     * Stops accepting requests and cancels the running conversions.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleConversion(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!isLocalRequest(exchange)) {
+                fail(exchange, 403, "Requests must be addressed to the loopback address and port of the server");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "Use POST");
+                return;
+            }
+            // Turn requests away before their uploads take up disk space
+            if (admitted.incrementAndGet() > maxAdmitted) {
+                admitted.decrementAndGet();
+                rejected.increment();
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+                sendText(exchange, 503, "Too many requests; try again later");
+                return;
+            }
+            Path uploadDirectory = null;
+            try {
+                Map<String, String> query = query(exchange.getRequestURI());
+                var requestOptions = options.toBuilder();
+                String profile = query.get("profile");
+                if (profile != null) {
+                    requestOptions.profile(OutputProfile.forId(profile));
+                }
+                String title = query.get("title");
+                File folder;
+                String folderPath = query.get("folder");
+                if (folderPath != null) {
+                    if (!allowFolders) {
+                        throw new RequestException(403, "Converting local folders is not enabled");
+                    }
+                    if (!hasFolderToken(exchange)) {
+                        exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                        throw new RequestException(401, "Converting a local folder needs the folder token");
+                    }
+                    folder = new File(folderPath);
+                    if (!folder.isDirectory()) {
+                        throw new RequestException(404, "No such folder: " + folderPath);
+                    }
+                    requestOptions.recursive(Boolean.parseBoolean(query.get("recursive")));
+                    if (title == null) {
+                        title = folder.getAbsoluteFile().getName();
+                    }
+                } else {
+                    uploadDirectory = Files.createTempDirectory("pdf-creator-upload-");
+                    var upload = new Upload(uploadDirectory, maxUploadBytes);
+                    String formTitle = upload.receive(exchange);
+                    folder = uploadDirectory.toFile();
+                    // Zip files keep their folders; the PDF is written next to the images and deleted with them
+                    requestOptions.recursive(true).report(false).syncPolicy(SyncPolicy.NONE)
+                            .resumable(false).append(false).volumeMaxBytes(0).volumePages(0);
+                    if (title == null) {
+                        title = formTitle != null ? formTitle : "images";
+                    }
+                }
+                checkTitle(title);
+
+                File pdfFile = convert(folder, title, requestOptions.build());
+                exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+                exchange.getResponseHeaders().set("Content-Disposition", contentDisposition(pdfFile.getName()));
+                exchange.sendResponseHeaders(200, pdfFile.length());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    Files.copy(pdfFile.toPath(), out);
+                }
+                succeeded.increment();
+            } catch (RequestException e) {
+                fail(exchange, e.status, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                // No images, or an unknown profile
+                fail(exchange, 400, e.getMessage());
+            } catch (CancellationException e) {
+                fail(exchange, 503, "The server is shutting down");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(exchange, 503, "The server is shutting down");
+            } catch (IOException | RuntimeException e) {
+                System.err.println(exchange.getRequestURI() + ": " + e);
+                fail(exchange, 500, "Error creating PDF: " + e.getMessage());
+            } finally {
+                admitted.decrementAndGet();
+                if (uploadDirectory != null) {
+                    deleteRecursively(uploadDirectory);
+                }
+            }
+        }
+    }
+
+    private File convert(File folder, String title, PdfCreationOptions requestOptions)
+            throws IOException, InterruptedException {
+        var engine = new PdfCreationEngine(requestOptions, encodePermits, memoryBudget);
+        var listener = new PdfCreationListener() {
+            @Override
+            public void finished(RunMetrics metrics) {
+                pages.add(metrics.getPageCount());
+                bytesIn.add(metrics.getBytesIn());
+                pdfBytes.add(metrics.getPdfBytes());
+                conversionNanos.record(metrics.getElapsedNanos());
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return closed;
+            }
+        };
+        jobPermits.acquire();
+        running.incrementAndGet();
+        try {
+            return engine.create(folder, title, listener);
+        } finally {
+            running.decrementAndGet();
+            jobPermits.release();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!isLocalRequest(exchange)) {
+                sendText(exchange, 403, "Requests must be addressed to the loopback address and port of the server");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                sendText(exchange, 405, "Use GET");
+                return;
+            }
+            var text = new StringBuilder();
+            metric(text, "pdf_creator_requests_total", "counter", "Conversion requests by result.");
+            text.append("pdf_creator_requests_total{result=\"succeeded\"} ").append(succeeded.sum()).append('\n');
+            text.append("pdf_creator_requests_total{result=\"failed\"} ").append(failed.sum()).append('\n');
+            text.append("pdf_creator_requests_total{result=\"rejected\"} ").append(rejected.sum()).append('\n');
+            metric(text, "pdf_creator_requests_active", "gauge",
+                    "Admitted requests that are uploading, waiting or converting.", admitted.get());
+            metric(text, "pdf_creator_jobs_running", "gauge", "Conversions running now.", running.get());
+            metric(text, "pdf_creator_pages_total", "counter", "Pages of the completed PDFs.", pages.sum());
+            metric(text, "pdf_creator_image_bytes_total", "counter", "Image bytes read.", bytesIn.sum());
+            metric(text, "pdf_creator_pdf_bytes_total", "counter", "Bytes of the completed PDFs.", pdfBytes.sum());
+            metric(text, "pdf_creator_conversion_seconds", "summary", "Time from scan to saved PDF.");
+            text.append("pdf_creator_conversion_seconds{quantile=\"0.5\"} ")
+                    .append(conversionNanos.getPercentile(0.5) / 1e9).append('\n');
+            text.append("pdf_creator_conversion_seconds{quantile=\"0.99\"} ")
+                    .append(conversionNanos.getPercentile(0.99) / 1e9).append('\n');
+            text.append("pdf_creator_conversion_seconds_sum ")
+                    .append(conversionNanos.getMean() * conversionNanos.getCount() / 1e9).append('\n');
+            text.append("pdf_creator_conversion_seconds_count ").append(conversionNanos.getCount()).append('\n');
+            metric(text, "pdf_creator_memory_budget_bytes", "gauge", "Read-ahead budget shared by all conversions.",
+                    memoryBudget.totalBytes());
+            metric(text, "pdf_creator_memory_budget_available_bytes", "gauge", "Read-ahead budget not in use.",
+                    memoryBudget.availableBytes());
+            metric(text, "pdf_creator_encode_permits_available", "gauge", "Decode/encode slots not in use.",
+                    encodePermits.availablePermits());
+
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a request was sent to this server by name rather than
+     * through a web page: the Host header must be the loopback address and
+     * port, and so must an Origin header if there is one.
+     */
+    private boolean isLocalRequest(HttpExchange exchange) {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null || !localHosts.contains(host.toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        return origin == null || origin.equalsIgnoreCase("http://" + host);
+    }
+
+    private boolean hasFolderToken(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return false;
+        }
+        // Compared in constant time
+        return MessageDigest.isEqual(authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+                folderToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Counts a failed request and answers it, unless the PDF was already
+     * being sent when the client went away.
+     */
+    private void fail(HttpExchange exchange, int status, String message) throws IOException {
+        failed.increment();
+        if (exchange.getResponseCode() == -1) {
+            sendText(exchange, status, message);
+        }
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help, long value) {
+        metric(text, name, type, help);
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(key, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * The title becomes a file name, so it must not lead out of the folder.
+     */
+    private static void checkTitle(String title) throws RequestException {
+        if (title.isBlank() || title.startsWith(".") || title.contains("/") || title.contains("\\")) {
+            throw new RequestException(400, "Invalid title: " + title);
+        }
+    }
+
+    private static String contentDisposition(String fileName) {
+        String ascii = fileName.replaceAll("[^\\x20-\\x7e]|[\"\\\\]", "_");
+        String encoded = URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20");
+        return "attachment; filename=\"" + ascii + "\"; filename*=UTF-8''" + encoded;
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A request that cannot be served, with the status to answer it with.
+     */
+    private static final class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Stores the images of one request in its upload folder, unpacking zip
+     * files, and stops once more than the upload limit has been stored.
+     */
+    private static final class Upload {
+        private final Path directory;
+        private final long maxBytes;
+        private long storedBytes;
+
+        Upload(Path directory, long maxBytes) {
+            this.directory = directory;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Stores the body of the request.
+         *
+         * @return the title given in the form or the name of the zip file, or
+         *         null if there is neither
+         */
+        String receive(HttpExchange exchange) throws IOException, RequestException {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            InputStream body = exchange.getRequestBody();
+            if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("application/zip")) {
+                unzip(body, directory);
+                return null;
+            }
+            String boundary = MultipartReader.boundary(contentType);
+            if (boundary == null) {
+                throw new RequestException(415, "Send multipart/form-data or application/zip, or give a folder");
+            }
+            String title = null;
+            String zipName = null;
+            var reader = new MultipartReader(body, boundary);
+            for (MultipartReader.Part part = reader.next(); part != null; part = reader.next()) {
+                if (part.fileName() == null) {
+                    if ("title".equals(part.name())) {
+                        title = new String(part.body().readNBytes(1024), StandardCharsets.UTF_8).strip();
+                    }
+                } else if (part.fileName().toLowerCase(Locale.ROOT).endsWith(".zip")) {
+                    // Each zip file gets a folder of its own, named after it
+                    String name = part.fileName().substring(0, part.fileName().length() - 4);
+                    unzip(part.body(), directory.resolve(safeName(name)));
+                    zipName = zipName == null ? name : zipName;
+                } else if (!skipped(part.fileName())) {
+                    store(part.body(), directory.resolve(safeName(part.fileName())));
+                }
+            }
+            return title != null && !title.isEmpty() ? title : zipName;
+        }
+
+        private void unzip(InputStream in, Path target) throws IOException, RequestException {
+            var zip = new ZipInputStream(in, StandardCharsets.UTF_8);
+            try {
+                for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                    Path file = target.resolve(entry.getName()).normalize();
+                    if (!file.startsWith(target)) {
+                        throw new RequestException(400, "Zip entry outside the archive: " + entry.getName());
+                    }
+                    if (entry.isDirectory() || skipped(entry.getName())) {
+                        continue;
+                    }
+                    store(zip, file);
+                }
+            } catch (IllegalArgumentException e) {
+                // Names that are not UTF-8
+                throw new RequestException(400, "Unreadable zip entry name: " + e.getMessage());
+            }
+        }
+
+        private void store(InputStream in, Path file) throws IOException, RequestException {
+            Files.createDirectories(file.getParent());
+            byte[] buffer = new byte[64 * 1024];
+            try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    storedBytes += n;
+                    if (storedBytes > maxBytes) {
+                        throw new RequestException(413, "The upload is larger than " + maxBytes + " bytes");
+                    }
+                    out.write(buffer, 0, n);
+                }
+            } catch (FileAlreadyExistsException e) {
+                throw new RequestException(400, "Two files are named " + directory.relativize(file));
+            }
+        }
+
+        private static String safeName(String name) throws RequestException {
+            if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                throw new RequestException(400, "Invalid file name: " + name);
+            }
+            return name;
+        }
+
+        /**
+         * @return whether a file is hidden or macOS metadata, such as the
+         *         {@code ._} files next to every image in a zip from a Mac
+         */
+        private static boolean skipped(String path) {
+            for (String name : path.split("/")) {
+                if (name.startsWith(".") || name.equals("__MACOSX")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
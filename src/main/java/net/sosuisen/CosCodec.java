@@ -0,0 +1,246 @@
+package net.sosuisen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Serializes a self-contained COS object tree, such as an image XObject with
+ * its soft mask and color space, to bytes and back.
+ * <p>
+ * Streams are stored with their filtered (raw) data, so reading an entry back
+ * never decodes or re-encodes an image. Indirect references are resolved and
+ * written inline; the trees produced by the image factories have no cycles.
+ */
+public final class CosCodec {
+    private static final int MAGIC = 0x50444358; // "PDCX"
+    private static final int VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte INTEGER = 2;
+    private static final byte FLOAT = 3;
+    private static final byte NAME = 4;
+    private static final byte STRING = 5;
+    private static final byte ARRAY = 6;
+    private static final byte DICTIONARY = 7;
+    private static final byte STREAM = 8;
+
+    private CosCodec() {
+    }
+
+    /**
+     * Serializes the given stream and everything it references.
+     *
+     * @param stream the stream to serialize
+     * @return the serialized bytes
+     * @throws IOException if reading the stream data fails
+     */
+    public static byte[] encode(COSStream stream) throws IOException {
+        var bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, stream.getLength() + 512));
+        encode(stream, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Serializes the given stream and everything it references to an output
+     * stream, without holding the stream data in memory.
+     *
+     * @param stream the stream to serialize
+     * @param output receives the serialized bytes; it is flushed, not closed
+     * @throws IOException if reading the stream data or writing fails
+     */
+    public static void encode(COSStream stream, OutputStream output) throws IOException {
+        var out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        write(stream, out, new IdentityHashMap<>());
+        out.flush();
+    }
+
+    /**
+     * Recreates a serialized stream inside the given document.
+     *
+     * @param data     bytes produced by {@link #encode(COSStream)}
+     * @param document the document that owns the recreated streams
+     * @return the recreated stream
+     * @throws IOException if the data is not a valid entry
+     */
+    public static COSStream decode(byte[] data, PDDocument document) throws IOException {
+        return decode(new ByteArrayInputStream(data), document);
+    }
+
+    /**
+     * Recreates a serialized stream inside the given document, reading
+     * exactly the bytes that {@link #encode(COSStream, OutputStream)} wrote.
+     *
+     * @param input    positioned at the start of the serialized bytes
+     * @param document the document that owns the recreated streams
+     * @return the recreated stream
+     * @throws IOException if the data is not a valid entry
+     */
+    public static COSStream decode(InputStream input, PDDocument document) throws IOException {
+        var in = new DataInputStream(input);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unsupported cache entry format");
+        }
+        COSBase base = read(in, document);
+        if (!(base instanceof COSStream)) {
+            throw new IOException("Cache entry does not contain a stream");
+        }
+        return (COSStream) base;
+    }
+
+    private static void write(COSBase base, DataOutputStream out, Map<COSBase, Boolean> path)
+            throws IOException {
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+        if (base == null || base instanceof COSNull) {
+            out.writeByte(NULL);
+        } else if (base instanceof COSBoolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((COSBoolean) base).getValue());
+        } else if (base instanceof COSInteger) {
+            out.writeByte(INTEGER);
+            out.writeLong(((COSInteger) base).longValue());
+        } else if (base instanceof COSFloat) {
+            out.writeByte(FLOAT);
+            out.writeFloat(((COSFloat) base).floatValue());
+        } else if (base instanceof COSName) {
+            out.writeByte(NAME);
+            out.writeUTF(((COSName) base).getName());
+        } else if (base instanceof COSString) {
+            byte[] bytes = ((COSString) base).getBytes();
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (base instanceof COSArray) {
+            enter(base, path);
+            COSArray array = (COSArray) base;
+            out.writeByte(ARRAY);
+            out.writeInt(array.size());
+            for (COSBase item : array) {
+                write(item, out, path);
+            }
+            path.remove(base);
+        } else if (base instanceof COSDictionary) {
+            enter(base, path);
+            COSDictionary dictionary = (COSDictionary) base;
+            boolean isStream = base instanceof COSStream;
+            out.writeByte(isStream ? STREAM : DICTIONARY);
+            int size = 0;
+            for (COSName key : dictionary.keySet()) {
+                if (!isStream || !COSName.LENGTH.equals(key)) {
+                    size++;
+                }
+            }
+            out.writeInt(size);
+            for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+                if (isStream && COSName.LENGTH.equals(entry.getKey())) {
+                    continue;
+                }
+                out.writeUTF(entry.getKey().getName());
+                write(entry.getValue(), out, path);
+            }
+            if (isStream) {
+                COSStream stream = (COSStream) base;
+                out.writeLong(stream.getLength());
+                try (InputStream raw = stream.createRawInputStream()) {
+                    IOUtils.copy(raw, out);
+                }
+            }
+            path.remove(base);
+        } else {
+            throw new IOException("Unsupported COS object: " + base.getClass().getSimpleName());
+        }
+    }
+
+    private static void enter(COSBase base, Map<COSBase, Boolean> path) throws IOException {
+        if (path.put(base, Boolean.TRUE) != null) {
+            throw new IOException("Cyclic COS object tree");
+        }
+    }
+
+    private static COSBase read(DataInputStream in, PDDocument document) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return COSNull.NULL;
+            case BOOLEAN:
+                return COSBoolean.getBoolean(in.readBoolean());
+            case INTEGER:
+                return COSInteger.get(in.readLong());
+            case FLOAT:
+                return new COSFloat(in.readFloat());
+            case NAME:
+                return COSName.getPDFName(in.readUTF());
+            case STRING: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new COSString(bytes);
+            }
+            case ARRAY: {
+                int size = in.readInt();
+                var array = new COSArray();
+                for (int i = 0; i < size; i++) {
+                    array.add(read(in, document));
+                }
+                return array;
+            }
+            case DICTIONARY:
+            case STREAM: {
+                COSDictionary dictionary = type == STREAM
+                        ? document.getDocument().createCOSStream()
+                        : new COSDictionary();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    COSName key = COSName.getPDFName(in.readUTF());
+                    dictionary.setItem(key, read(in, document));
+                }
+                if (type == STREAM) {
+                    long length = in.readLong();
+                    try (OutputStream raw = ((COSStream) dictionary).createRawOutputStream()) {
+                        copy(in, raw, length);
+                    }
+                }
+                return dictionary;
+            }
+            default:
+                throw new IOException("Corrupt cache entry, unknown type " + type);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(65536, Math.max(1, length))];
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new IOException("Truncated cache entry");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+}
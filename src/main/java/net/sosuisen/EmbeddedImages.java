@@ -0,0 +1,77 @@
+package net.sosuisen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * The image XObjects already embedded in an output document, indexed so that
+ * later pages with the same content can draw the same XObject.
+ * <p>
+ * Used by the assembler thread only.
+ */
+class EmbeddedImages {
+    private final int nearDuplicateDistance;
+    private final Map<String, PDImageXObject> byContentHash = new HashMap<>();
+    private final List<Fingerprint> fingerprints = new ArrayList<>();
+
+    /**
+     * @param nearDuplicateDistance the largest {@link PerceptualHash} distance
+     *                              that counts as the same image, or -1 to match
+     *                              identical content only
+     */
+    EmbeddedImages(int nearDuplicateDistance) {
+        this.nearDuplicateDistance = nearDuplicateDistance;
+    }
+
+    /**
+     * Finds an embedded image with the same content as the prepared image.
+     *
+     * @param prepared the next image from the pipeline
+     * @return the embedded image, or null if the prepared image must be
+     *         imported, or, for a duplicate, if its image was embedded in an
+     *         earlier volume
+     */
+    PDImageXObject find(PreparedImage prepared) {
+        PDImageXObject image = null;
+        if (prepared.getContentHash() != null) {
+            image = byContentHash.get(prepared.getContentHash());
+        }
+        if (image == null && prepared.getPerceptualHash() != null && !prepared.isDuplicate()) {
+            long hash = prepared.getPerceptualHash();
+            for (Fingerprint fingerprint : fingerprints) {
+                if (fingerprint.width() == prepared.getWidth() && fingerprint.height() == prepared.getHeight()
+                        && PerceptualHash.distance(fingerprint.hash(), hash) <= nearDuplicateDistance) {
+                    image = fingerprint.image();
+                    break;
+                }
+            }
+        }
+        if (image != null && prepared.getContentHash() != null) {
+            byContentHash.putIfAbsent(prepared.getContentHash(), image);
+        }
+        return image;
+    }
+
+    /**
+     * Records an image that was imported for the prepared image.
+     *
+     * @param prepared the image from the pipeline
+     * @param image    the XObject in the output document
+     */
+    void add(PreparedImage prepared, PDImageXObject image) {
+        if (prepared.getContentHash() != null) {
+            byContentHash.put(prepared.getContentHash(), image);
+        }
+        if (prepared.getPerceptualHash() != null) {
+            fingerprints.add(new Fingerprint(image.getWidth(), image.getHeight(),
+                    prepared.getPerceptualHash(), image));
+        }
+    }
+
+    private record Fingerprint(int width, int height, long hash, PDImageXObject image) {
+    }
+}
@@ -0,0 +1,87 @@
+package net.sosuisen;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events emitted while a PDF is created.
+ * <p>
+ * They are recorded together with the JVM's own events (GC, allocation,
+ * file I/O), for example with
+ * {@code java -XX:StartFlightRecording=filename=run.jfr ...}, and can be
+ * inspected in JDK Mission Control under the "PDF Creator" category.
+ */
+final class FlightEvents {
+    private FlightEvents() {
+    }
+
+    /**
+     * One stage of one image or of the whole run; see {@link RunMetrics.Stage}.
+     */
+    @Name("net.sosuisen.Stage")
+    @Label("Stage")
+    @Category("PDF Creator")
+    @Description("Scanning, sorting, reading, decoding, encoding, page assembly or saving")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * The preparation of one image on a pipeline worker.
+     */
+    @Name("net.sosuisen.Image")
+    @Label("Image")
+    @Category("PDF Creator")
+    @Description("Reading, decoding and encoding one image, or taking it from the cache")
+    static class ImageEvent extends Event {
+        @Label("Page Index")
+        int index;
+
+        @Label("File")
+        String file;
+
+        @Label("Source")
+        String source;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Pixels")
+        long pixels;
+    }
+
+    /**
+     * A whole PDF creation.
+     */
+    @Name("net.sosuisen.Job")
+    @Label("PDF Job")
+    @Category("PDF Creator")
+    static class JobEvent extends Event {
+        @Label("Title")
+        String title;
+
+        @Label("Pages")
+        int pages;
+
+        @Label("PDF Size")
+        @DataAmount
+        long bytesOut;
+    }
+}
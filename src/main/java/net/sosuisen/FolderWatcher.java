@@ -0,0 +1,198 @@
+package net.sosuisen;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches an image folder and calls back once a burst of changes has settled.
+ * <p>
+ * A scanner writing a page produces several create and modify events, and a
+ * batch of pages produces many more. The watcher waits until no event has
+ * arrived for the settle time, then calls {@code onChange} once on its own
+ * thread. Events that arrive while the callback runs are collected and lead
+ * to one more call after it returns, so a callback that rebuilds the PDF
+ * synchronously never overlaps with itself.
+ * <p>
+ * Changes to PDF files and JSON reports are ignored, since they are the
+ * output of a rebuild rather than its input. Combined with an
+ * {@link ImageCache}, a rebuild only encodes the new and modified images;
+ * the others are taken from the cache as converted streams.
+ */
+public class FolderWatcher implements AutoCloseable {
+    /**
+     * Default time without changes after which the folder counts as settled.
+     */
+    public static final Duration DEFAULT_SETTLE_TIME = Duration.ofSeconds(2);
+
+    private final Path folder;
+    private final boolean recursive;
+    private final Duration settleTime;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Thread thread;
+
+    /**
+     * Starts watching a folder.
+     *
+     * @param folder     the folder to watch
+     * @param recursive  whether to watch subfolders too, including ones
+     *                   created later
+     * @param settleTime how long the folder must be quiet before
+     *                   {@code onChange} is called
+     * @param onChange   called on the watcher thread after each settled burst
+     *                   of changes
+     * @throws IOException if the folder cannot be watched
+     */
+    public FolderWatcher(Path folder, boolean recursive, Duration settleTime, Runnable onChange)
+            throws IOException {
+        this.folder = folder;
+        this.recursive = recursive;
+        this.settleTime = settleTime;
+        this.onChange = onChange;
+        this.watchService = folder.getFileSystem().newWatchService();
+        try {
+            register(folder);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        this.thread = Thread.ofVirtual().name("folder-watcher-" + folder.getFileName()).start(this::run);
+    }
+
+    /**
+     * @return the watched folder
+     */
+    public Path getFolder() {
+        return folder;
+    }
+
+    /**
+     * Stops watching. A callback that is running is not interrupted.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.err.println("Could not stop watching " + folder + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until the watcher thread has ended.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                // Block until something happens, then until nothing has happened for a while
+                boolean relevant = drain(watchService.take());
+                WatchKey key;
+                while ((key = watchService.poll(settleTime.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                    relevant |= drain(key);
+                }
+                if (directories.isEmpty()) {
+                    System.err.println("Stopped watching " + folder + ": the folder is gone");
+                    return;
+                }
+                if (relevant) {
+                    try {
+                        onChange.run();
+                    } catch (RuntimeException e) {
+                        // Keep watching; the next change may well succeed
+                        System.err.println("Rebuild of " + folder + " failed: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Handles the events of one key.
+     *
+     * @return true if any of them may change the PDF
+     */
+    private boolean drain(WatchKey key) {
+        Path directory = directories.get(key);
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Events were lost; assume the worst
+                relevant = true;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (recursive && event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    register(path);
+                } catch (IOException e) {
+                    System.err.println("Could not watch " + path + ": " + e.getMessage());
+                }
+                relevant = true;
+            } else if (isInput(path)) {
+                relevant = true;
+            }
+        }
+        if (!key.reset()) {
+            // The directory was deleted or can no longer be watched
+            directories.remove(key);
+            relevant = true;
+        }
+        return relevant;
+    }
+
+    /**
+     * @return false for files that a rebuild writes itself, or that are never
+     *         images
+     */
+    private static boolean isInput(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return !name.endsWith(".pdf") && !name.endsWith(".json") && !name.startsWith(".");
+    }
+
+    private void register(Path root) throws IOException {
+        if (!recursive) {
+            directories.put(root.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), root);
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // Unreadable subfolders are skipped by the scan as well
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
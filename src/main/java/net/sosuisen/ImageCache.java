@@ -0,0 +1,293 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent, content-addressed cache of converted image XObjects.
+ * <p>
+ * An entry holds the finished image stream as serialized by {@link CosCodec}:
+ * the filtered bytes together with the image dictionary (width, height, color
+ * space, filter and decode parameters, soft mask). Entries are found in two
+ * ways:
+ * <ol>
+ * <li>by file path, size and modification time, which does not require
+ * reading the source image at all, and</li>
+ * <li>by the SHA-256 hash of the file content, which still finds an entry
+ * after a file was touched, copied or renamed.</li>
+ * </ol>
+ * Both keys include a variant string that identifies the encoding settings,
+ * so images converted with different settings never share an entry.
+ * <p>
+ * Disk usage is capped; when an entry or path reference is stored and the
+ * cap is exceeded, the least recently used entries and references are
+ * deleted. References count toward the cap too, since a caller such as the
+ * conversion server links a new temporary path for every upload. Use is
+ * tracked by the file's modification time, which is refreshed on every hit.
+ * <p>
+ * Instances are thread-safe. {@link #open(Path, long)} returns the same
+ * instance for the same directory so that all users share one size count.
+ */
+public class ImageCache {
+    /**
+     * Default cache directory: {@code ~/.pdf-creator/cache}.
+     */
+    public static final Path DEFAULT_DIRECTORY = Path.of(System.getProperty("user.home"), ".pdf-creator", "cache");
+
+    /**
+     * Default disk cap: 2 GiB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+
+    private static final Map<Path, ImageCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private final Path objects;
+    private final Path refs;
+    private final long maxBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private ImageCache(Path directory, long maxBytes) throws IOException {
+        this.objects = directory.resolve("objects");
+        this.refs = directory.resolve("refs");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(objects);
+        Files.createDirectories(refs);
+        totalBytes.set(listEntries().stream().mapToLong(Entry::size).sum());
+    }
+
+    /**
+     * Opens the cache in the given directory, creating it if needed.
+     *
+     * @param directory the cache directory
+     * @param maxBytes  the disk cap in bytes
+     * @return the cache
+     * @throws IOException if the directory cannot be created or read
+     */
+    public static ImageCache open(Path directory, long maxBytes) throws IOException {
+        try {
+            return INSTANCES.computeIfAbsent(directory.toAbsolutePath().normalize(), dir -> {
+                try {
+                    return new ImageCache(dir, maxBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the bytes currently used by cache entries and path references
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Returns the content hash recorded for a file by {@link #link}, without
+     * reading the file.
+     *
+     * @param file    the source image
+     * @param size    the size of the source image
+     * @param mtime   the modification time of the source image
+     * @param variant identifies the encoding settings
+     * @return the SHA-256 hash of the file content, or null if unknown
+     */
+    public String findContentHash(File file, long size, FileTime mtime, String variant) {
+        try {
+            Path ref = shard(refs, refKey(file, size, mtime, variant));
+            String contentHash = Files.readString(ref, StandardCharsets.US_ASCII).trim();
+            touch(ref);
+            return contentHash;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up an entry by content hash.
+     *
+     * @param contentHash the SHA-256 hash of the source image file
+     * @param variant     identifies the encoding settings
+     * @return the serialized image, or null if there is no entry
+     */
+    public byte[] find(String contentHash, String variant) {
+        try {
+            return read(objectKey(contentHash, variant));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tells whether there is an entry for a content hash, without reading it.
+     *
+     * @param contentHash the SHA-256 hash of the source image file
+     * @param variant     identifies the encoding settings
+     * @return true if the entry exists
+     */
+    public boolean contains(String contentHash, String variant) {
+        return Files.exists(shard(objects, objectKey(contentHash, variant)));
+    }
+
+    /**
+     * Records that the given file has the given content, so that the next
+     * lookup by path, size and modification time succeeds.
+     *
+     * @param file        the source image
+     * @param size        the size of the source image
+     * @param mtime       the modification time of the source image
+     * @param contentHash the SHA-256 hash of the source image file
+     * @param variant     identifies the encoding settings
+     * @throws IOException if the reference cannot be written
+     */
+    public void link(File file, long size, FileTime mtime, String contentHash, String variant)
+            throws IOException {
+        Path ref = shard(refs, refKey(file, size, mtime, variant));
+        byte[] data = contentHash.getBytes(StandardCharsets.US_ASCII);
+        long previous = Files.exists(ref) ? Files.size(ref) : 0;
+        writeAtomically(ref, data);
+        if (totalBytes.addAndGet(data.length - previous) > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Stores a serialized image and links the file to it.
+     *
+     * @param file        the source image
+     * @param size        the size of the source image
+     * @param mtime       the modification time of the source image
+     * @param contentHash the SHA-256 hash of the source image file
+     * @param variant     identifies the encoding settings
+     * @param entry       the serialized image
+     * @throws IOException if the entry cannot be written
+     */
+    public void store(File file, long size, FileTime mtime, String contentHash, String variant, byte[] entry)
+            throws IOException {
+        if (entry.length > maxBytes) {
+            return;
+        }
+        Path object = shard(objects, objectKey(contentHash, variant));
+        long previous = Files.exists(object) ? Files.size(object) : 0;
+        writeAtomically(object, entry);
+        link(file, size, mtime, contentHash, variant);
+        if (totalBytes.addAndGet(entry.length - previous) > maxBytes) {
+            evict();
+        }
+    }
+
+    private byte[] read(String objectKey) throws IOException {
+        Path object = shard(objects, objectKey);
+        byte[] data = Files.readAllBytes(object);
+        touch(object);
+        return data;
+    }
+
+    /**
+     * Refreshes the position of an entry or reference in the LRU order.
+     */
+    private static void touch(Path file) throws IOException {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted while it was being read; the bytes are still valid.
+        }
+    }
+
+    /**
+     * Deletes least recently used entries and references until the cache is
+     * at 90% of its cap.
+     */
+    private synchronized void evict() throws IOException {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Entry> entries = listEntries();
+        entries.sort(Comparator.comparing(Entry::lastUsed));
+        long total = entries.stream().mapToLong(Entry::size).sum();
+        long target = maxBytes / 10 * 9;
+        for (Entry entry : entries) {
+            if (total <= target) {
+                break;
+            }
+            if (Files.deleteIfExists(entry.path())) {
+                total -= entry.size();
+            }
+        }
+        // References to deleted entries only lead to a miss and are overwritten by link().
+        totalBytes.set(total);
+    }
+
+    private List<Entry> listEntries() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        listFiles(objects, entries);
+        listFiles(refs, entries);
+        return entries;
+    }
+
+    private static void listFiles(Path root, List<Entry> entries) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(".tmp")) {
+                    entries.add(new Entry(file, attrs.size(), attrs.lastModifiedTime()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void writeAtomically(Path target, byte[] data) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Path shard(Path root, String key) {
+        return root.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static String refKey(File file, long size, FileTime mtime, String variant) {
+        return ContentHash.of(file.getAbsolutePath() + '\0' + size + '\0' + mtime.toMillis() + '\0' + variant);
+    }
+
+    private static String objectKey(String contentHash, String variant) {
+        return ContentHash.of(contentHash + '\0' + variant);
+    }
+
+    private record Entry(Path path, long size, FileTime lastUsed) {
+    }
+}
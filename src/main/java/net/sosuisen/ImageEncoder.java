@@ -0,0 +1,484 @@
+package net.sosuisen;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDIndexed;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Turns an image file into a {@link PDImageXObject}, avoiding a decode and
+ * re-encode wherever the source data can be used as it is. The format is
+ * recognized from the data, so a misnamed file is still handled correctly.
+ * <ul>
+ * <li>JPEG files are embedded as-is with DCTDecode.</li>
+ * <li>Non-interlaced PNG files have their IDAT data copied into a FlateDecode
+ * stream with the matching PNG predictor in /DecodeParms. Palette PNGs keep
+ * their palette as an /Indexed color space.</li>
+ * <li>Palette GIF and BMP files are decoded once and their color indices are
+ * stored with an /Indexed color space instead of being expanded to RGB.</li>
+ * <li>Everything else is detected by content and falls back to
+ * {@link LosslessFactory}.</li>
+ * </ul>
+ * An {@link OutputProfile} may reduce or convert an image instead. The reduced
+ * raster is decoded directly with source subsampling, so the full-size image
+ * is never held in memory, and is then re-encoded as JPEG.
+ * <p>
+ * A profile that {@link OutputProfile#detectsMonochrome() detects monochrome}
+ * pages has {@link MonochromeDetector} look at each image first. Bilevel
+ * images become CCITT Group 4, and gray images become 8-bit DeviceGray, or
+ * gray JPEG if they are reduced. JPEG, gray and palette files that turn out
+ * to be gray are embedded as above; converting them would save little or, for
+ * JPEG, cost a generation of compression.
+ */
+public final class ImageEncoder {
+    /**
+     * Identifies the output of this encoder in the {@link ImageCache}. Change
+     * it whenever the encoding changes so that stale entries are not reused.
+     */
+    public static final String VARIANT = "2";
+
+    private ImageEncoder() {
+    }
+
+    /**
+     * Creates an image XObject from the given file.
+     *
+     * @param file     the image file
+     * @param document the document that the image is created in
+     * @return the image XObject
+     * @throws IOException              if reading or encoding fails
+     * @throws IllegalArgumentException if the image type is not supported
+     */
+    public static PDImageXObject createImage(File file, PDDocument document) throws IOException {
+        return createImage(file, document, OutputProfile.ORIGINAL);
+    }
+
+    /**
+     * Creates an image XObject from the given file, reduced and converted as
+     * the profile requires. Images that are kept at their original size and
+     * are too large to decode at once are embedded by {@link StripedEncoder}.
+     *
+     * @param file     the image file
+     * @param document the document that the image is created in
+     * @param profile  the output profile
+     * @return the image XObject
+     * @throws IOException if reading or encoding fails
+     */
+    static PDImageXObject createImage(File file, PDDocument document, OutputProfile profile) throws IOException {
+        if (profile.isOriginal()) {
+            Dimension size = readSize(file);
+            if (size != null && StripedEncoder.isRequired(file, size.width, size.height)) {
+                return StripedEncoder.createImage(file, document, null);
+            }
+        }
+        return createImage(Files.readAllBytes(file.toPath()), file.getName(), document, profile);
+    }
+
+    /**
+     * Creates an image XObject from the contents of an image file.
+     *
+     * @param data     the bytes of the image file
+     * @param fileName the file name, used if the format cannot be recognized
+     *                 from the data
+     * @param document the document that the image is created in
+     * @return the image XObject
+     * @throws IOException              if decoding or encoding fails
+     * @throws IllegalArgumentException if the image type is not supported
+     */
+    public static PDImageXObject createImage(byte[] data, String fileName, PDDocument document)
+            throws IOException {
+        return createImage(data, fileName, document, OutputProfile.ORIGINAL);
+    }
+
+    /**
+     * Creates an image XObject from the contents of an image file, reduced
+     * and converted as the profile requires.
+     *
+     * @param data     the bytes of the image file
+     * @param fileName the file name, used if the format cannot be recognized
+     *                 from the data
+     * @param document the document that the image is created in
+     * @param profile  the output profile
+     * @return the image XObject
+     * @throws IOException              if decoding or encoding fails
+     * @throws IllegalArgumentException if the image type is not supported
+     */
+    public static PDImageXObject createImage(byte[] data, String fileName, PDDocument document,
+            OutputProfile profile) throws IOException {
+        return createImage(data, fileName, document, profile, null);
+    }
+
+    /**
+     * Creates an image XObject as {@link #createImage(byte[], String,
+     * PDDocument, OutputProfile)} does, timing decoding and encoding
+     * separately.
+     *
+     * @param metrics the metrics to record {@link RunMetrics.Stage#DECODE}
+     *                and {@link RunMetrics.Stage#ENCODE} to, or null
+     */
+    static PDImageXObject createImage(byte[] data, String fileName, PDDocument document,
+            OutputProfile profile, RunMetrics metrics) throws IOException {
+        if (!profile.isOriginal()) {
+            var span = RunMetrics.start(metrics, RunMetrics.Stage.DECODE, fileName);
+            BufferedImage reduced = readReduced(data, profile);
+            span.end(data.length);
+            if (reduced != null) {
+                var content = profile.detectsMonochrome()
+                        ? MonochromeDetector.classify(reduced, profile.monochromeTolerance())
+                        : MonochromeDetector.Content.COLOR;
+                span = RunMetrics.start(metrics, RunMetrics.Stage.ENCODE, fileName);
+                PDImageXObject image;
+                if (content == MonochromeDetector.Content.BILEVEL) {
+                    image = MonochromeDetector.createBilevel(document, reduced);
+                } else {
+                    if (content == MonochromeDetector.Content.GRAY
+                            && !MonochromeDetector.isSingleChannel(reduced.getColorModel())) {
+                        reduced = MonochromeDetector.toGray(reduced);
+                    }
+                    image = JPEGFactory.createFromImage(document, reduced, profile.jpegQuality());
+                }
+                span.end(image.getCOSObject().getLength());
+                return image;
+            }
+        }
+        // The content decides; the extension is only a fallback for unrecognized data
+        ImageFormat format = ImageFormat.detect(data);
+        if (format == null) {
+            format = ImageFormat.fromExtension(fileName);
+        }
+        if (profile.detectsMonochrome()) {
+            PDImageXObject image = createMonochrome(data, fileName, format, document, profile, metrics);
+            if (image != null) {
+                return image;
+            }
+        }
+        if (format == ImageFormat.GIF || format == ImageFormat.BMP) {
+            var span = RunMetrics.start(metrics, RunMetrics.Stage.DECODE, fileName);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            span.end(data.length);
+            if (image == null) {
+                throw new IOException("Unable to decode image: " + fileName);
+            }
+            span = RunMetrics.start(metrics, RunMetrics.Stage.ENCODE, fileName);
+            PDImageXObject pdImage = image.getColorModel() instanceof IndexColorModel
+                    ? createIndexed(document, image)
+                    : LosslessFactory.createFromImage(document, image);
+            span.end(pdImage.getCOSObject().getLength());
+            return pdImage;
+        }
+        // JPEG is copied as it is, and PDFBox copies the IDAT chunks when a PNG
+        // allows it and decodes otherwise, so both count as encoding only.
+        var span = RunMetrics.start(metrics, RunMetrics.Stage.ENCODE, fileName);
+        PDImageXObject image = format == ImageFormat.JPEG
+                ? JPEGFactory.createFromByteArray(document, data)
+                : PDImageXObject.createFromByteArray(document, data, fileName);
+        span.end(image.getCOSObject().getLength());
+        return image;
+    }
+
+    /**
+     * Embeds an image with one channel if it is bilevel, or gray and stored
+     * with more channels than that.
+     *
+     * @return the image XObject, or null if the image is embedded as usual
+     */
+    private static PDImageXObject createMonochrome(byte[] data, String fileName, ImageFormat format,
+            PDDocument document, OutputProfile profile, RunMetrics metrics) throws IOException {
+        int tolerance = profile.monochromeTolerance();
+        var span = RunMetrics.start(metrics, RunMetrics.Stage.DECODE, fileName);
+        BufferedImage sample = MonochromeDetector.readSample(data);
+        var content = sample != null ? MonochromeDetector.classify(sample, tolerance)
+                : MonochromeDetector.Content.COLOR;
+        // Only a bilevel result is worth a full decode of an image that is gray
+        // already or that would be copied as JPEG
+        boolean compact = format == ImageFormat.JPEG
+                || sample != null && MonochromeDetector.isSingleChannel(sample.getColorModel());
+        if (content == MonochromeDetector.Content.COLOR || content == MonochromeDetector.Content.GRAY && compact) {
+            span.end(0);
+            return null;
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        span.end(data.length);
+        if (image == null) {
+            return null;
+        }
+        // The sample may have missed a few colored or midtone pixels
+        content = MonochromeDetector.classify(image, tolerance);
+        if (content == MonochromeDetector.Content.COLOR || content == MonochromeDetector.Content.GRAY && compact) {
+            return null;
+        }
+        span = RunMetrics.start(metrics, RunMetrics.Stage.ENCODE, fileName);
+        PDImageXObject pdImage = content == MonochromeDetector.Content.BILEVEL
+                ? MonochromeDetector.createBilevel(document, image)
+                : MonochromeDetector.createGray(document, MonochromeDetector.toGray(image));
+        span.end(pdImage.getCOSObject().getLength());
+        return pdImage;
+    }
+
+    /**
+     * Reads the pixel size of an image from its header.
+     *
+     * @return the size, or null if ImageIO cannot read the header
+     */
+    static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes the image at the reduced size that the profile asks for.
+     *
+     * @return the reduced (or grayscale) image, or null if the image is kept
+     *         as it is or cannot be decoded by ImageIO
+     */
+    private static BufferedImage readReduced(byte[] data, OutputProfile profile) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, false);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                double dpi = profile.targetDpi() > 0 ? readDpi(reader) : 0;
+                double scale = profile.scale(width, height, dpi);
+                if (scale >= 1 && !profile.grayscale()) {
+                    return null;
+                }
+                int targetWidth = Math.max(1, (int) Math.round(width * Math.min(scale, 1)));
+                int targetHeight = Math.max(1, (int) Math.round(height * Math.min(scale, 1)));
+
+                // Read every n-th pixel only; the result is at most twice the target size
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = OutputProfile.subsampling(scale);
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                return resample(image, targetWidth, targetHeight, profile.grayscale());
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            // For example CMYK JPEGs, which ImageIO cannot decode; embed them unchanged.
+            return null;
+        }
+    }
+
+    /**
+     * Scales an image to the given size with bilinear interpolation, and
+     * converts it to grayscale if requested. Transparency is kept for color
+     * output and flattened onto white for grayscale.
+     */
+    private static BufferedImage resample(BufferedImage image, int width, int height, boolean grayscale) {
+        boolean alpha = image.getColorModel().hasAlpha() && !grayscale;
+        if (image.getWidth() == width && image.getHeight() == height && !grayscale) {
+            return image;
+        }
+        int type = grayscale ? BufferedImage.TYPE_BYTE_GRAY
+                : alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        var target = new BufferedImage(width, height, type);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            if (!alpha) {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, width, height);
+            }
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    /**
+     * Reads the horizontal resolution from the standard image metadata.
+     *
+     * @return the resolution in dots per inch, or 0 if the file does not record one
+     */
+    private static double readDpi(ImageReader reader) {
+        try {
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+                return 0;
+            }
+            var root = (Element) metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+            NodeList sizes = root.getElementsByTagName("HorizontalPixelSize");
+            if (sizes.getLength() == 0) {
+                return 0;
+            }
+            // The standard format gives millimetres per pixel
+            double millimetres = Double.parseDouble(((Element) sizes.item(0)).getAttribute("value"));
+            return millimetres > 0 ? 25.4 / millimetres : 0;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Creates an /Indexed image from a palette image without expanding it to RGB.
+     *
+     * @param document the document that the image is created in
+     * @param image    an image with an {@link IndexColorModel}
+     * @return the image XObject
+     * @throws IOException if encoding fails
+     */
+    static PDImageXObject createIndexed(PDDocument document, BufferedImage image) throws IOException {
+        var colorModel = (IndexColorModel) image.getColorModel();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int bitsPerComponent = indexBits(colorModel);
+
+        Raster raster = image.getRaster();
+        int[] row = new int[width];
+        var indices = new ByteArrayOutputStream();
+        int transparent = colorModel.getTransparentPixel();
+        boolean colorKey = transparent >= 0 && isColorKeyOnly(colorModel, transparent);
+        var alphas = colorModel.hasAlpha() && !colorKey ? new ByteArrayOutputStream() : null;
+        try (OutputStream out = deflater(indices);
+                OutputStream alphaOut = alphas != null ? deflater(alphas) : OutputStream.nullOutputStream()) {
+            byte[] packed = new byte[(width * bitsPerComponent + 7) / 8];
+            byte[] alphaRow = new byte[width];
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, row);
+                pack(row, bitsPerComponent, packed);
+                out.write(packed);
+                if (alphas != null) {
+                    for (int x = 0; x < width; x++) {
+                        alphaRow[x] = (byte) colorModel.getAlpha(row[x]);
+                    }
+                    alphaOut.write(alphaRow);
+                }
+            }
+        }
+
+        var pdImage = new PDImageXObject(document, new ByteArrayInputStream(indices.toByteArray()),
+                COSName.FLATE_DECODE, width, height, bitsPerComponent, indexedColorSpace(colorModel));
+
+        if (colorKey) {
+            // A single fully transparent palette entry (the usual GIF case) is a color key mask.
+            var mask = new COSArray();
+            mask.add(COSInteger.get(transparent));
+            mask.add(COSInteger.get(transparent));
+            pdImage.getCOSObject().setItem(COSName.MASK, mask);
+        } else if (alphas != null) {
+            var softMask = new PDImageXObject(document, new ByteArrayInputStream(alphas.toByteArray()),
+                    COSName.FLATE_DECODE, width, height, 8, PDDeviceGray.INSTANCE);
+            pdImage.getCOSObject().setItem(COSName.SMASK, softMask);
+        }
+        return pdImage;
+    }
+
+    /**
+     * @return the fewest bits per index that address every palette entry
+     */
+    static int indexBits(IndexColorModel colorModel) {
+        int mapSize = colorModel.getMapSize();
+        return mapSize <= 2 ? 1 : mapSize <= 4 ? 2 : mapSize <= 16 ? 4 : 8;
+    }
+
+    /**
+     * @return an /Indexed color space over DeviceRGB with the palette's colors
+     */
+    static PDIndexed indexedColorSpace(IndexColorModel colorModel) throws IOException {
+        int mapSize = colorModel.getMapSize();
+        byte[] lookup = new byte[mapSize * 3];
+        for (int i = 0; i < mapSize; i++) {
+            lookup[i * 3] = (byte) colorModel.getRed(i);
+            lookup[i * 3 + 1] = (byte) colorModel.getGreen(i);
+            lookup[i * 3 + 2] = (byte) colorModel.getBlue(i);
+        }
+        var indexedArray = new COSArray();
+        indexedArray.add(COSName.INDEXED);
+        indexedArray.add(COSName.DEVICERGB);
+        indexedArray.add(COSInteger.get(mapSize - 1));
+        indexedArray.add(new COSString(lookup));
+        return new PDIndexed(indexedArray);
+    }
+
+    /**
+     * @return true if the palette is opaque except for the given fully
+     *         transparent entry, so that a color key mask can stand in for an
+     *         alpha channel
+     */
+    static boolean isColorKeyOnly(IndexColorModel colorModel, int transparent) {
+        for (int i = 0; i < colorModel.getMapSize(); i++) {
+            int alpha = colorModel.getAlpha(i);
+            if (i == transparent ? alpha != 0 : alpha != 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void pack(int[] samples, int bitsPerComponent, byte[] packed) {
+        if (bitsPerComponent == 8) {
+            for (int i = 0; i < samples.length; i++) {
+                packed[i] = (byte) samples[i];
+            }
+            return;
+        }
+        Arrays.fill(packed, (byte) 0);
+        int perByte = 8 / bitsPerComponent;
+        for (int i = 0; i < samples.length; i++) {
+            int shift = 8 - bitsPerComponent * (i % perByte + 1);
+            packed[i / perByte] |= (byte) (samples[i] << shift);
+        }
+    }
+
+    static OutputStream deflater(OutputStream out) {
+        return new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), 65536) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+}
@@ -0,0 +1,109 @@
+package net.sosuisen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * The image formats that can be placed on a page, recognized by content or
+ * by file extension.
+ */
+public enum ImageFormat {
+    JPEG, PNG, GIF, BMP;
+
+    /**
+     * The number of leading bytes that {@link #detect(byte[], int)} looks at.
+     */
+    public static final int HEADER_LENGTH = 18;
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    /**
+     * Recognizes a format by the signature at the start of a file.
+     *
+     * @param header the first bytes of the file
+     * @param length the number of valid bytes in {@code header}
+     * @return the format, or null if the bytes are not a supported image
+     */
+    public static ImageFormat detect(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8 && (header[2] & 0xff) == 0xff) {
+            return JPEG;
+        }
+        if (startsWith(header, length, PNG_SIGNATURE)) {
+            return PNG;
+        }
+        if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8'
+                && (header[4] == '7' || header[4] == '9') && header[5] == 'a') {
+            return GIF;
+        }
+        if (length >= 18 && header[0] == 'B' && header[1] == 'M') {
+            // "BM" alone is too weak; also require a known DIB header size
+            int dibSize = (header[14] & 0xff) | (header[15] & 0xff) << 8 | (header[16] & 0xff) << 16
+                    | (header[17] & 0xff) << 24;
+            if (dibSize == 12 || dibSize == 16 || dibSize == 40 || dibSize == 52 || dibSize == 56
+                    || dibSize == 64 || dibSize == 108 || dibSize == 124) {
+                return BMP;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param data the whole file or at least its first bytes
+     * @return the format, or null if the bytes are not a supported image
+     */
+    public static ImageFormat detect(byte[] data) {
+        return detect(data, data.length);
+    }
+
+    /**
+     * Reads the first bytes of a file and recognizes its format.
+     *
+     * @param file the file
+     * @return the format, or null if the file is not a supported image
+     * @throws IOException if the file cannot be read
+     */
+    public static ImageFormat detect(Path file) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = in.readNBytes(header, 0, header.length);
+        }
+        return detect(header, length);
+    }
+
+    /**
+     * @param fileName a file name
+     * @return the format that the extension stands for, or null
+     */
+    public static ImageFormat fromExtension(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+            return JPEG;
+        }
+        if (name.endsWith(".png")) {
+            return PNG;
+        }
+        if (name.endsWith(".gif")) {
+            return GIF;
+        }
+        if (name.endsWith(".bmp")) {
+            return BMP;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] signature) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (header[i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
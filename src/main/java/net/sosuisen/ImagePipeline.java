@@ -0,0 +1,573 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Decodes and encodes images on worker threads while handing them
+ * to a single assembler in their original order.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * try (var pipeline = new ImagePipeline(imageFiles)) {
+ *     for (int i = 0; i &lt; imageFiles.size(); i++) {
+ *         try (PreparedImage prepared = pipeline.next()) {
+ *             PDImageXObject image = prepared.importInto(document);
+ *             // add a page and draw the image
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * Read-ahead is bounded by a {@link MemoryBudget}. Before an image is
+ * scheduled, the feeder reserves an estimate of its decoded raster plus its
+ * file size; the reservation shrinks to the encoded size once the worker is
+ * done, and is returned in full when the assembler closes the
+ * {@link PreparedImage}. Reservations are taken strictly in input order, so
+ * the image the assembler is waiting for can always make progress.
+ * <p>
+ * With duplicate detection enabled, each file is hashed while it is read. A
+ * file whose content matches an earlier file in the list is neither decoded
+ * nor encoded; the assembler receives a {@link PreparedImage#duplicate
+ * placeholder} instead and reuses the earlier XObject.
+ */
+public class ImagePipeline implements AutoCloseable {
+    /**
+     * Default read-ahead budget: a quarter of the maximum heap, at most 512 MiB.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = Math.min(512L * 1024 * 1024,
+            Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * Default number of concurrent encodes: one per available processor.
+     */
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    private final List<File> imageFiles;
+    private final int firstIndex;
+    private final ImageCache cache;
+    private final OutputProfile profile;
+    private final String variant;
+    private final boolean deduplicate;
+    private final boolean perceptualHashes;
+    private final ConcurrentMap<String, Integer> firstIndexByHash = new ConcurrentHashMap<>();
+    private final Semaphore encodePermits;
+    private final MemoryBudget budget;
+    private final File scratchDirectory;
+    private final RunMetrics metrics;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final BlockingQueue<CompletableFuture<PreparedImage>> ready = new LinkedBlockingQueue<>();
+    private final Thread feeder;
+    private volatile boolean closed;
+    private int nextIndex;
+
+    /**
+     * Creates a pipeline with the default options.
+     *
+     * @param imageFiles the images in page order
+     */
+    public ImagePipeline(List<File> imageFiles) {
+        this(imageFiles, PdfCreationOptions.defaults());
+    }
+
+    /**
+     * Creates a pipeline with its own encode limit and memory budget, taken
+     * from the options.
+     *
+     * @param imageFiles the images in page order
+     * @param options    the creation settings
+     */
+    public ImagePipeline(List<File> imageFiles, PdfCreationOptions options) {
+        this(imageFiles, options, new Semaphore(options.getWorkers()), new MemoryBudget(options.getMemoryBudget()));
+    }
+
+    /**
+     * Creates a pipeline that shares its encode limit and memory budget with
+     * other pipelines, and starts reading ahead immediately.
+     * <p>
+     * Each image is read on its own virtual thread, so blocking file I/O does
+     * not hold a platform thread. Only the CPU-heavy decode/encode step takes a
+     * permit from {@code encodePermits}.
+     *
+     * @param imageFiles    the images in page order
+     * @param options       the creation settings; the worker count and memory
+     *                      budget are ignored
+     * @param encodePermits limits the number of images decoded/encoded at once
+     * @param budget        limits the bytes held by images that have been
+     *                      scheduled but not yet closed by the assembler
+     */
+    public ImagePipeline(List<File> imageFiles, PdfCreationOptions options, Semaphore encodePermits,
+            MemoryBudget budget) {
+        this(imageFiles, options, encodePermits, budget, null);
+    }
+
+    /**
+     * Creates a pipeline that shares its encode limit and memory budget with
+     * other pipelines and records the reading, decoding and encoding of every
+     * image.
+     *
+     * @param imageFiles    the images in page order
+     * @param options       the creation settings; the worker count and memory
+     *                      budget are ignored
+     * @param encodePermits limits the number of images decoded/encoded at once
+     * @param budget        limits the bytes held by images that have been
+     *                      scheduled but not yet closed by the assembler
+     * @param metrics       the metrics to record to, or null
+     */
+    public ImagePipeline(List<File> imageFiles, PdfCreationOptions options, Semaphore encodePermits,
+            MemoryBudget budget, RunMetrics metrics) {
+        this(imageFiles, 0, options, encodePermits, budget, metrics);
+    }
+
+    /**
+     * Creates a pipeline for the images from a position onwards, for a run
+     * that takes the pages before it from a {@link ResumeJournal}.
+     *
+     * @param imageFiles    all images in page order
+     * @param firstIndex    the position of the first image to prepare
+     * @param options       the creation settings; the worker count and memory
+     *                      budget are ignored
+     * @param encodePermits limits the number of images decoded/encoded at once
+     * @param budget        limits the bytes held by images that have been
+     *                      scheduled but not yet closed by the assembler
+     * @param metrics       the metrics to record to, or null
+     */
+    ImagePipeline(List<File> imageFiles, int firstIndex, PdfCreationOptions options, Semaphore encodePermits,
+            MemoryBudget budget, RunMetrics metrics) {
+        this.imageFiles = List.copyOf(imageFiles);
+        this.firstIndex = firstIndex;
+        this.nextIndex = firstIndex;
+        this.cache = options.getImageCache();
+        this.profile = options.getProfile();
+        this.variant = ImageEncoder.VARIANT + profile.cacheKey();
+        this.deduplicate = options.isDeduplicate();
+        this.perceptualHashes = options.getNearDuplicateDistance() >= 0;
+        this.encodePermits = encodePermits;
+        this.budget = budget;
+        this.scratchDirectory = options.getScratchDirectory();
+        this.metrics = metrics;
+
+        this.feeder = Thread.ofVirtual().name("image-pipeline-feeder").start(this::feed);
+    }
+
+    /**
+     * Returns the next image in input order, waiting for its worker if needed.
+     * The caller must close the returned image once it has been imported.
+     *
+     * @return the next prepared image
+     * @throws IOException          if the image could not be read or encoded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public PreparedImage next() throws IOException, InterruptedException {
+        if (nextIndex >= imageFiles.size()) {
+            throw new IllegalStateException("No more images in the pipeline");
+        }
+        nextIndex++;
+        try {
+            return ready.take().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops reading ahead and discards every image that has not been handed to
+     * the assembler.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        feeder.interrupt();
+        workers.shutdownNow();
+        try {
+            feeder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (CompletableFuture<PreparedImage> future : ready) {
+            // Close images as they complete, including those still being prepared.
+            future.thenAccept(ImagePipeline::closeQuietly);
+        }
+        ready.clear();
+    }
+
+    private void feed() {
+        Iterator<File> it = imageFiles.listIterator(firstIndex);
+        for (int index = firstIndex; it.hasNext() && !closed; index++) {
+            File file = it.next();
+            // Queued first, so that whatever goes wrong below fails this page instead of leaving next() waiting
+            var future = new CompletableFuture<PreparedImage>();
+            ready.add(future);
+            long reserved = 0;
+            try {
+                Header header = readHeader(file, profile);
+                reserved = budget.acquire(header.estimateBytes(profile));
+                int i = index;
+                long held = reserved;
+                workers.execute(() -> prepare(i, file, header, held, future));
+            } catch (InterruptedException e) {
+                future.completeExceptionally(new CancellationException());
+                return;
+            } catch (Throwable t) {
+                // Also rejected execution because the pipeline was closed
+                budget.release(reserved);
+                future.completeExceptionally(t);
+                if (closed) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void prepare(int index, File file, Header header, long reserved,
+            CompletableFuture<PreparedImage> future) {
+        long start = System.nanoTime();
+        PDRectangle pageSize = header.pageSize();
+        PDDocument scratch = null;
+        try {
+            var source = new SourceImage(file, cache, variant, metrics, header.striped());
+            if (deduplicate) {
+                // The lowest index with this content owns it; later ones only refer to it.
+                int owner = firstIndexByHash.merge(source.contentHash(), index, Math::min);
+                if (owner < index) {
+                    budget.release(reserved);
+                    reserved = 0;
+                    imagePrepared(index, file, ImageSource.DUPLICATE, source, null, header, start);
+                    complete(future, PreparedImage.duplicate(index, file, pageSize, source.contentHash()));
+                    return;
+                }
+            }
+            if (header.striped()) {
+                // Neither the raster nor the compressed image is held on the heap
+                MemoryUsageSetting scratchSetting = MemoryUsageSetting.setupTempFileOnly();
+                if (scratchDirectory != null) {
+                    scratchSetting.setTempDir(scratchDirectory);
+                }
+                scratch = new PDDocument(scratchSetting);
+            } else {
+                scratch = new PDDocument();
+            }
+            // Cache entries are held in memory whole, so huge images are not cached
+            boolean cached = cache != null && !header.striped();
+            PDImageXObject image = cached ? findCached(source, scratch) : null;
+            ImageSource origin = image != null ? ImageSource.CACHED : ImageSource.ENCODED;
+            if (image == null && header.striped()) {
+                encodePermits.acquire();
+                try {
+                    image = StripedEncoder.createImage(file, scratch, metrics);
+                } finally {
+                    encodePermits.release();
+                }
+                source.streamed(header.fileSize());
+            } else if (image == null) {
+                byte[] data = source.data();
+                encodePermits.acquire();
+                try {
+                    image = ImageEncoder.createImage(data, file.getName(), scratch, profile, metrics);
+                } finally {
+                    encodePermits.release();
+                }
+                if (cached) {
+                    storeCached(source, image);
+                }
+            }
+            Long perceptualHash = null;
+            if (perceptualHashes) {
+                encodePermits.acquire();
+                try {
+                    perceptualHash = PerceptualHash.of(file);
+                } finally {
+                    encodePermits.release();
+                }
+            }
+            imagePrepared(index, file, origin, source, image, header, start);
+            complete(future, new PreparedImage(index, file, pageSize, scratch, image, budget, reserved, origin,
+                    deduplicate ? source.contentHash() : null, perceptualHash));
+        } catch (Throwable t) {
+            budget.release(reserved);
+            if (scratch != null) {
+                try {
+                    scratch.close();
+                } catch (IOException ignore) {
+                    // The scratch document only holds heap buffers.
+                }
+            }
+            future.completeExceptionally(t);
+        }
+    }
+
+    private void complete(CompletableFuture<PreparedImage> future, PreparedImage prepared) {
+        if (closed) {
+            closeQuietly(prepared);
+            future.completeExceptionally(new CancellationException());
+        } else {
+            future.complete(prepared);
+        }
+    }
+
+    private void imagePrepared(int index, File file, ImageSource origin, SourceImage source,
+            PDImageXObject image, Header header, long start) {
+        if (metrics != null) {
+            metrics.imagePrepared(index, file, origin, source.bytesRead(),
+                    image != null ? image.getCOSObject().getLength() : 0, (long) header.width() * header.height(),
+                    start);
+        }
+    }
+
+    /**
+     * Looks the image up by path, size and modification time, then by content
+     * hash, and recreates it in the scratch document on a hit. The file is only
+     * read if the first lookup misses.
+     */
+    private PDImageXObject findCached(SourceImage source, PDDocument scratch) throws IOException {
+        BasicFileAttributes attrs = source.attributes();
+        boolean linked = source.isContentHashRecorded();
+        var span = RunMetrics.start(metrics, RunMetrics.Stage.READ, source.file().getName());
+        byte[] entry = cache.find(source.contentHash(), variant);
+        span.end(entry != null ? entry.length : 0);
+        if (entry == null) {
+            return null;
+        }
+        if (!linked) {
+            cache.link(source.file(), attrs.size(), attrs.lastModifiedTime(), source.contentHash(), variant);
+        }
+        try {
+            return new PDImageXObject(new PDStream(CosCodec.decode(entry, scratch)), null);
+        } catch (IOException e) {
+            // A damaged entry is treated as a miss and overwritten.
+            return null;
+        }
+    }
+
+    private void storeCached(SourceImage source, PDImageXObject image) {
+        try {
+            BasicFileAttributes attrs = source.attributes();
+            cache.store(source.file(), attrs.size(), attrs.lastModifiedTime(), source.contentHash(),
+                    variant, CosCodec.encode(image.getCOSObject()));
+        } catch (IOException e) {
+            // The cache is an optimization; a full disk must not fail the conversion.
+            System.err.println("Could not cache " + source.file().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(PreparedImage prepared) {
+        try {
+            prepared.close();
+        } catch (IOException ignore) {
+            // The scratch document only holds heap buffers.
+        }
+    }
+
+    /**
+     * Reads the pixel size of an image from its header, and decides whether it
+     * is embedded in strips.
+     */
+    private static Header readHeader(File file, OutputProfile profile) {
+        long fileSize = file.length();
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in != null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(in, true, true);
+                        int width = reader.getWidth(0);
+                        int height = reader.getHeight(0);
+                        // Reduced images are decoded with subsampling and never need strips
+                        boolean striped = profile.isOriginal() && StripedEncoder.isRequired(file, width, height);
+                        return new Header(fileSize, width, height, striped);
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Corrupt headers make some readers throw, e.g. NegativeArraySizeException from BMP.
+            // Fall through to the file-size based estimate; the worker reports the real error.
+        }
+        return new Header(fileSize, 0, 0, false);
+    }
+
+    /**
+     * The file size and pixel size of an image; the pixel size is 0 if the
+     * header could not be read. A striped image is embedded by
+     * {@link StripedEncoder} straight from its file.
+     */
+    private record Header(long fileSize, int width, int height, boolean striped) {
+        /**
+         * @return the page size in points, one per pixel, or null if unknown
+         */
+        PDRectangle pageSize() {
+            return width > 0 ? new PDRectangle(width, height) : null;
+        }
+
+        /**
+         * Estimates how much heap an image needs while it is decoded and
+         * encoded: the compressed file plus a 4-byte-per-pixel raster. A
+         * reduced image is decoded with subsampling and then resampled, so it
+         * needs two smaller rasters instead, and a striped image one strip and
+         * the reader's copy of it.
+         */
+        long estimateBytes(OutputProfile profile) {
+            if (width <= 0) {
+                return fileSize * 8;
+            }
+            if (striped) {
+                return 2 * StripedEncoder.STRIP_BYTES;
+            }
+            long raster = 4L * width * height;
+            int step = OutputProfile.subsampling(profile.scale(width, height, 0));
+            if (step > 1) {
+                raster = 2 * 4L * ((width + step - 1) / step) * ((height + step - 1) / step);
+            }
+            if (profile.detectsMonochrome()) {
+                // The gray or bilevel copy of the decoded raster
+                raster += raster / 4;
+            }
+            return fileSize + raster;
+        }
+    }
+
+    /**
+     * Reads the attributes, bytes and hash of a source image at most once each.
+     * The hash is taken from the cache's path reference when there is one, and
+     * is otherwise computed while the bytes are read. For a streamed image the
+     * bytes are hashed as they go by and never kept.
+     */
+    private static class SourceImage {
+        private final File file;
+        private final ImageCache cache;
+        private final String variant;
+        private final RunMetrics metrics;
+        private final boolean streamed;
+        private BasicFileAttributes attributes;
+        private byte[] data;
+        private long bytesRead;
+        private String contentHash;
+        private boolean contentHashRecorded;
+
+        SourceImage(File file, ImageCache cache, String variant, RunMetrics metrics, boolean streamed) {
+            this.file = file;
+            this.cache = cache;
+            this.variant = variant;
+            this.metrics = metrics;
+            this.streamed = streamed;
+        }
+
+        File file() {
+            return file;
+        }
+
+        BasicFileAttributes attributes() throws IOException {
+            if (attributes == null) {
+                attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            }
+            return attributes;
+        }
+
+        byte[] data() throws IOException {
+            if (data == null) {
+                var span = RunMetrics.start(metrics, RunMetrics.Stage.READ, file.getName());
+                MessageDigest digest = ContentHash.newDigest();
+                try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+                    data = in.readAllBytes();
+                }
+                bytesRead = data.length;
+                span.end(data.length);
+                if (contentHash == null) {
+                    contentHash = HexFormat.of().formatHex(digest.digest());
+                }
+            }
+            return data;
+        }
+
+        /**
+         * Hashes the file without keeping its bytes.
+         */
+        private void hash() throws IOException {
+            var span = RunMetrics.start(metrics, RunMetrics.Stage.READ, file.getName());
+            MessageDigest digest = ContentHash.newDigest();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), digest)) {
+                bytesRead = in.transferTo(OutputStream.nullOutputStream());
+            }
+            span.end(bytesRead);
+            contentHash = HexFormat.of().formatHex(digest.digest());
+        }
+
+        /**
+         * Records that the encoder read the whole file by itself.
+         */
+        void streamed(long fileSize) {
+            if (data == null) {
+                bytesRead = fileSize;
+            }
+        }
+
+        /**
+         * @return the number of bytes read from the file, 0 if it was not read
+         */
+        long bytesRead() {
+            return bytesRead;
+        }
+
+        String contentHash() throws IOException {
+            if (contentHash == null && cache != null) {
+                BasicFileAttributes attrs = attributes();
+                contentHash = cache.findContentHash(file, attrs.size(), attrs.lastModifiedTime(), variant);
+                contentHashRecorded = contentHash != null;
+            }
+            if (contentHash == null && streamed) {
+                hash();
+            } else if (contentHash == null) {
+                data();
+            }
+            return contentHash;
+        }
+
+        /**
+         * @return true if the hash came from the cache's path reference, so the
+         *         file does not need to be linked again
+         */
+        boolean isContentHashRecorded() throws IOException {
+            contentHash();
+            return contentHashRecorded;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Finds the images in a folder and puts them in page order.
+ * <p>
+ * Entries are read with {@link Files#walkFileTree}, one level deep unless in
+ * recursive mode, and the attributes that come with each entry are used to
+ * pick out regular files, so no entry is looked up twice. Files with an image extension are taken as they are; the encoder
+ * later recognizes their real format from the data. Every other file is
+ * recognized by its first bytes, which are read for many files at once, so
+ * images without an extension or with an unrelated one are found as well.
+ * With content detection turned off only the extension counts.
+ * <p>
+ * In recursive mode a folder's own images come first, then the images of each
+ * subfolder in turn; files and subfolders are both in natural name order.
+ */
+public final class ImageScanner {
+    /**
+     * How many files are probed for their format at the same time. Probing is
+     * I/O-bound, so this is well above the number of processors to hide the
+     * latency of network drives.
+     */
+    private static final int PROBE_CONCURRENCY = 64;
+
+    private ImageScanner() {
+    }
+
+    /**
+     * Lists the images in a folder.
+     *
+     * @param folder        the folder to scan
+     * @param recursive     whether to include subfolders
+     * @param detectContent whether to recognize images by their first bytes
+     *                      rather than by extension only
+     * @return the image files in page order
+     * @throws IOException          if the folder does not exist or cannot be read
+     * @throws InterruptedException if interrupted while probing files
+     */
+    public static List<File> scan(Path folder, boolean recursive, boolean detectContent)
+            throws IOException, InterruptedException {
+        return scan(folder, recursive, detectContent, null);
+    }
+
+    /**
+     * Lists the images in a folder, timing the listing and probing as
+     * {@link RunMetrics.Stage#SCAN} and the ordering as
+     * {@link RunMetrics.Stage#SORT}.
+     *
+     * @param folder        the folder to scan
+     * @param recursive     whether to include subfolders
+     * @param detectContent whether to recognize images by their first bytes
+     *                      rather than by extension only
+     * @param metrics       the metrics to record to, or null
+     * @return the image files in page order
+     * @throws IOException          if the folder does not exist or cannot be read
+     * @throws InterruptedException if interrupted while probing files
+     */
+    static List<File> scan(Path folder, boolean recursive, boolean detectContent, RunMetrics metrics)
+            throws IOException, InterruptedException {
+        var span = RunMetrics.start(metrics, RunMetrics.Stage.SCAN, null);
+        Map<Path, Directory> directories = recursive ? walk(folder) : Map.of(folder, list(folder));
+        span.end(0);
+
+        span = RunMetrics.start(metrics, RunMetrics.Stage.SORT, null);
+        List<Path> candidates = new ArrayList<>();
+        collect(directories, folder, candidates);
+        span.end(0);
+
+        List<Path> unknown = new ArrayList<>();
+        if (detectContent) {
+            for (Path file : candidates) {
+                if (ImageFormat.fromExtension(file.getFileName().toString()) == null) {
+                    unknown.add(file);
+                }
+            }
+        }
+        span = RunMetrics.start(metrics, RunMetrics.Stage.SCAN, null);
+        var detected = new HashSet<>(probe(unknown));
+        span.end((long) unknown.size() * ImageFormat.HEADER_LENGTH);
+
+        List<File> images = new ArrayList<>(candidates.size());
+        for (Path file : candidates) {
+            if (ImageFormat.fromExtension(file.getFileName().toString()) != null || detected.contains(file)) {
+                images.add(file.toFile());
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Reads the entries of one folder, following links. The attributes come
+     * with the listing, except for links.
+     */
+    private static Directory list(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            throw new FileSystemException(folder.toString(), null, "フォルダが見つかりません");
+        }
+        var directory = new Directory();
+        Files.walkFileTree(folder, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    directory.files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (file.equals(folder)) {
+                    throw exc;
+                }
+                // Deleted since it was listed
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return directory;
+    }
+
+    /**
+     * Reads the entries of a folder and all its subfolders, following links.
+     */
+    private static Map<Path, Directory> walk(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new FileSystemException(root.toString(), null, "フォルダが見つかりません");
+        }
+        Map<Path, Directory> directories = new HashMap<>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        directories.put(dir, new Directory());
+                        Directory parent = directories.get(dir.getParent());
+                        if (parent != null && !dir.equals(root)) {
+                            parent.subdirectories.add(dir);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            directories.get(file.getParent()).files.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                        if (file.equals(root)) {
+                            throw exc;
+                        }
+                        // Skip unreadable subfolders and link cycles rather than failing the scan
+                        System.err.println("Skipped " + file + ": " + exc.getMessage());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        return directories;
+    }
+
+    /**
+     * Appends the files of a folder, then those of its subfolders, in natural order.
+     */
+    private static void collect(Map<Path, Directory> directories, Path folder, List<Path> out) {
+        Directory directory = directories.get(folder);
+        NaturalSortKey.sort(directory.files, path -> path.getFileName().toString());
+        out.addAll(directory.files);
+        NaturalSortKey.sort(directory.subdirectories, path -> path.getFileName().toString());
+        for (Path subdirectory : directory.subdirectories) {
+            collect(directories, subdirectory, out);
+        }
+    }
+
+    /**
+     * Returns the files that start with the signature of a supported image,
+     * reading the first bytes of many files concurrently. Files that cannot be
+     * read are left out.
+     */
+    private static List<Path> probe(List<Path> files) throws InterruptedException {
+        var permits = new Semaphore(PROBE_CONCURRENCY);
+        List<Future<Boolean>> results = new ArrayList<>(files.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path file : files) {
+                results.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return ImageFormat.detect(file) != null;
+                    } catch (IOException e) {
+                        return false;
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            List<Path> images = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                if (results.get(i).get()) {
+                    images.add(files.get(i));
+                }
+            }
+            return images;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static class Directory {
+        final List<Path> files = new ArrayList<>();
+        final List<Path> subdirectories = new ArrayList<>();
+    }
+}
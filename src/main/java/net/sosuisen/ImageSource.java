@@ -0,0 +1,28 @@
+package net.sosuisen;
+
+/**
+ * Where the image XObject of a page came from.
+ */
+public enum ImageSource {
+    /**
+     * The image was decoded and encoded in this run.
+     */
+    ENCODED,
+
+    /**
+     * The encoded image was taken from the {@link ImageCache}.
+     */
+    CACHED,
+
+    /**
+     * The page reuses the XObject of an earlier page with identical (or, if
+     * enabled, nearly identical) content.
+     */
+    DUPLICATE,
+
+    /**
+     * The page was completed by an earlier, interrupted run and taken from
+     * its {@link ResumeJournal}.
+     */
+    RESUMED
+}
@@ -0,0 +1,51 @@
+package net.sosuisen;
+
+import javafx.beans.binding.Bindings;
+import javafx.beans.binding.StringBinding;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.VBox;
+
+/**
+ * Shows one {@link PdfJob} in the queue view: its title and state, a
+ * progress bar, and the latest progress message.
+ */
+public class JobListCell extends ListCell<PdfJob> {
+    private final Label titleLabel = new Label();
+    private final ProgressBar progressBar = new ProgressBar();
+    private final Label messageLabel = new Label();
+    private final VBox box = new VBox(2, titleLabel, progressBar, messageLabel);
+
+    public JobListCell() {
+        progressBar.setMaxWidth(Double.MAX_VALUE);
+        messageLabel.getStyleClass().add("job-message");
+    }
+
+    @Override
+    protected void updateItem(PdfJob job, boolean empty) {
+        super.updateItem(job, empty);
+        titleLabel.textProperty().unbind();
+        progressBar.progressProperty().unbind();
+        messageLabel.textProperty().unbind();
+
+        if (empty || job == null) {
+            setGraphic(null);
+            return;
+        }
+        titleLabel.textProperty().bind(Bindings.concat(job.titleProperty(), "（", stateText(job), "）"));
+        progressBar.progressProperty().bind(job.progressProperty());
+        messageLabel.textProperty().bind(job.messageProperty());
+        setGraphic(box);
+    }
+
+    private static StringBinding stateText(PdfJob job) {
+        return Bindings.createStringBinding(() -> switch (job.getState()) {
+            case READY, SCHEDULED -> "待機中";
+            case RUNNING -> "実行中";
+            case SUCCEEDED -> "完了";
+            case CANCELLED -> "キャンセル";
+            case FAILED -> "エラー";
+        }, job.stateProperty());
+    }
+}
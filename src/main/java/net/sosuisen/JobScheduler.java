@@ -0,0 +1,105 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * Runs queued {@link PdfJob}s side by side on virtual threads.
+ * <p>
+ * Every job gets its own virtual thread, so jobs waiting on file I/O do not
+ * hold platform threads. What limits the machine is shared by all jobs:
+ * <ul>
+ * <li>at most {@code maxConcurrentJobs} jobs are running; the rest wait in
+ * the queue,</li>
+ * <li>at most {@code maxConcurrentEncodes} images are decoded/encoded at
+ * once across all running jobs,</li>
+ * <li>read-ahead of all running jobs is bounded by one {@link MemoryBudget}.</li>
+ * </ul>
+ * The scheduler is owned by the {@link Model} and must be used from the
+ * JavaFX Application Thread.
+ */
+public class JobScheduler implements AutoCloseable {
+    /**
+     * Default limit of concurrent decodes/encodes: one per available processor.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_ENCODES = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default limit of jobs that run at the same time.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_JOBS = 4;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ObservableList<PdfJob> jobs = FXCollections.observableArrayList();
+    private final Semaphore encodePermits;
+    private final Semaphore jobPermits;
+    private final MemoryBudget memoryBudget;
+
+    /**
+     * Creates a scheduler with the default limits.
+     */
+    public JobScheduler() {
+        this(DEFAULT_MAX_CONCURRENT_ENCODES, DEFAULT_MAX_CONCURRENT_JOBS, ImagePipeline.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates a scheduler with the given limits.
+     *
+     * @param maxConcurrentEncodes the number of images decoded/encoded at once
+     * @param maxConcurrentJobs    the number of jobs that run at the same time
+     * @param memoryBudgetBytes    the read-ahead budget shared by all jobs
+     */
+    public JobScheduler(int maxConcurrentEncodes, int maxConcurrentJobs, long memoryBudgetBytes) {
+        if (maxConcurrentEncodes <= 0 || maxConcurrentJobs <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.encodePermits = new Semaphore(maxConcurrentEncodes);
+        this.jobPermits = new Semaphore(maxConcurrentJobs, true);
+        this.memoryBudget = new MemoryBudget(memoryBudgetBytes);
+    }
+
+    /**
+     * @return all submitted jobs, oldest first
+     */
+    public ObservableList<PdfJob> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Adds a job to the queue and starts it as soon as a slot is free.
+     *
+     * @param folder   the folder that contains the images
+     * @param pdfTitle the PDF title
+     * @param options  the creation settings; the worker count and memory
+     *                 budget are replaced by the scheduler's shared limits
+     * @return the queued job
+     */
+    public PdfJob submit(File folder, String pdfTitle, PdfCreationOptions options) {
+        var engine = new PdfCreationEngine(options, encodePermits, memoryBudget);
+        var job = new PdfJob(folder, pdfTitle, engine, jobPermits);
+        jobs.add(job);
+        executor.execute(job);
+        return job;
+    }
+
+    /**
+     * Removes finished, failed and cancelled jobs from the list.
+     */
+    public void removeFinished() {
+        jobs.removeIf(job -> job.isDone());
+    }
+
+    /**
+     * Cancels every job and stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        jobs.forEach(PdfJob::cancel);
+        executor.shutdownNow();
+    }
+}
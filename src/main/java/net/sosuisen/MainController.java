@@ -1,29 +1,26 @@
 package net.sosuisen;
 
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextField;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
+import javafx.util.StringConverter;
 
 import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.List;
-import javafx.concurrent.Task;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDDocumentInformation;
-import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.PDPageContentStream;
-import org.apache.pdfbox.pdmodel.common.PDRectangle;
-import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Controller for the main.fxml
@@ -40,6 +37,30 @@ public class MainController {
     @FXML
     private Label folderNameLabel;
 
+    @FXML
+    private CheckBox recursiveCheckBox;
+
+    @FXML
+    private CheckBox lowMemoryCheckBox;
+
+    @FXML
+    private ChoiceBox<OutputProfile> outputProfileChoiceBox;
+
+    @FXML
+    private CheckBox monochromeCheckBox;
+
+    @FXML
+    private ChoiceBox<Integer> volumeSizeChoiceBox;
+
+    @FXML
+    private CheckBox watchCheckBox;
+
+    @FXML
+    private CheckBox resumableCheckBox;
+
+    @FXML
+    private CheckBox appendCheckBox;
+
     @FXML
     private Button createPdfButton;
 
@@ -55,8 +76,22 @@ public class MainController {
     @FXML
     private Label progressMessageLabel;
 
+    @FXML
+    private ListView<PdfJob> jobListView;
+
+    @FXML
+    private Button clearJobsButton;
+
+    @FXML
+    private Label pageCountLabel;
+
+    @FXML
+    private ThumbnailGrid thumbnailGrid;
+
     private Model model;
-    private Task<Void> currentTask;
+
+    /** Incremented for every preview scan so that a stale scan is dropped. */
+    private long previewGeneration;
 
     public MainController(Model model) {
         // Notice that @FXML-annotated fields (e.g., messageLabel) have not been loaded
@@ -68,12 +103,51 @@ public class MainController {
     private void initialize() {
         pdfTitleLabel.textProperty().bindBidirectional(model.pdfTitleTextProperty());
         folderNameLabel.textProperty().bind(model.folderNameTextProperty());
+        recursiveCheckBox.selectedProperty().bindBidirectional(model.recursiveProperty());
+        lowMemoryCheckBox.selectedProperty().bindBidirectional(model.lowMemoryModeProperty());
+        outputProfileChoiceBox.getItems().setAll(OutputProfile.PRESETS);
+        outputProfileChoiceBox.valueProperty().bindBidirectional(model.outputProfileProperty());
+        monochromeCheckBox.selectedProperty().bindBidirectional(model.detectMonochromeProperty());
+        volumeSizeChoiceBox.getItems().setAll(List.of(0, 100, 200, 500, 1000));
+        volumeSizeChoiceBox.setConverter(new StringConverter<>() {
+            @Override
+            public String toString(Integer megabytes) {
+                return megabytes == null || megabytes == 0 ? "分割しない" : megabytes + " MBごとに分割";
+            }
+
+            @Override
+            public Integer fromString(String text) {
+                return volumeSizeChoiceBox.getItems().stream()
+                        .filter(megabytes -> toString(megabytes).equals(text))
+                        .findFirst()
+                        .orElse(null);
+            }
+        });
+        volumeSizeChoiceBox.valueProperty().bindBidirectional(model.volumeSizeMegabytesProperty());
+        watchCheckBox.selectedProperty().bindBidirectional(model.watchProperty());
+        resumableCheckBox.selectedProperty().bindBidirectional(model.resumableProperty());
+        appendCheckBox.selectedProperty().bindBidirectional(model.appendProperty());
+        // Pages can only be appended to a single PDF
+        appendCheckBox.disableProperty().bind(Bindings.createBooleanBinding(
+                () -> model.volumeSizeMegabytesProperty().get() != 0, model.volumeSizeMegabytesProperty()));
+
+        // Watch the selected folder while the check box is on
+        model.watchProperty().addListener((observable, oldValue, newValue) -> updateFolderWatcher());
+        model.folderNameTextProperty().addListener((observable, oldValue, newValue) -> updateFolderWatcher());
+        model.recursiveProperty().addListener((observable, oldValue, newValue) -> updateFolderWatcher());
+
+        // Preview the pages in the order they will appear in the PDF
+        thumbnailGrid.setThumbnailCache(model.getThumbnailCache());
+        model.folderNameTextProperty().addListener((observable, oldValue, newValue) -> updatePreview());
+        model.recursiveProperty().addListener((observable, oldValue, newValue) -> updatePreview());
 
         selectFolderButton.setOnAction(e -> onSelectFolder());
 
         createPdfButton.setOnAction(e -> onCreatePdf());
         cancelButton.setOnAction(e -> onCancelPdf());
+        clearJobsButton.setOnAction(e -> model.getJobScheduler().removeFinished());
 
+        // Jobs are queued, so the button stays enabled while other jobs run
         createPdfButton.disableProperty().bind(
                 Bindings.isEmpty(model.pdfTitleTextProperty())
                         .or(Bindings.isEmpty(model.folderNameTextProperty())));
@@ -86,9 +160,16 @@ public class MainController {
                         model.folderNameTextProperty(),
                         "\\",
                         model.pdfTitleTextProperty(),
-                        ".pdf"));
+                        Bindings.createStringBinding(
+                                () -> model.volumeSizeMegabytesProperty().get() > 0 ? "_001.pdf, _002.pdf, ..." : ".pdf",
+                                model.volumeSizeMegabytesProperty())));
         outputHintLabel.textProperty().bind(model.outputHintTextProperty());
 
+        // The queue view; the progress bar and cancel button follow the selected job
+        jobListView.setItems(model.getJobScheduler().getJobs());
+        jobListView.setCellFactory(listView -> new JobListCell());
+        jobListView.getSelectionModel().selectedItemProperty()
+                .addListener((observable, oldJob, newJob) -> showJob(newJob));
     }
 
     @FXML
@@ -106,200 +187,191 @@ public class MainController {
 
     @FXML
     private void onCreatePdf() {
+        PdfJob job = submitJob(true);
+        jobListView.getSelectionModel().select(job);
+        jobListView.scrollTo(job);
+    }
+
+    /**
+     * Queues a PDF creation with the current settings.
+     *
+     * @param showCompletion whether to show an alert once the queue has
+     *                       drained; rebuilds in watch mode only show errors
+     * @return the queued job
+     */
+    private PdfJob submitJob(boolean showCompletion) {
         String pdfTitle = model.pdfTitleTextProperty().get();
         String folderPath = model.folderNameTextProperty().get();
-
-        // Unbind and disable button during processing, show processing label
-        createPdfButton.disableProperty().unbind();
-        createPdfButton.setDisable(true);
-        cancelButton.setVisible(true);
-
-        currentTask = new Task<Void>() {
-            @Override
-            protected Void call() throws Exception {
-                File folder = new File(folderPath);
-                List<File> imageFiles = getImageFiles(folder);
-
-                if (imageFiles.isEmpty()) {
-                    System.out.println("No image files found in the selected folder.");
-                    throw new IllegalArgumentException("選択したフォルダに画像ファイルが見つかりません。");
-                }
-
-                PDDocument document = new PDDocument();
-
-                // Set PDF document properties
-                PDDocumentInformation info = document.getDocumentInformation();
-                info.setTitle(pdfTitle);
-
-                int totalImages = imageFiles.size();
-                for (int i = 0; i < totalImages; i++) {
-                    // Check for cancellation
-                    if (isCancelled()) {
-                        document.close();
-                        return null;
-                    }
-
-                    File imageFile = imageFiles.get(i);
-
-                    // Update progress
-                    updateMessage("Processing image " + (i + 1) + " of " + totalImages + ": " + imageFile.getName());
-                    updateProgress(i, totalImages);
-
-                    PDImageXObject image = PDImageXObject.createFromFile(imageFile.getAbsolutePath(), document);
-
-                    // Create a page with the same size as the image
-                    PDRectangle pageSize = new PDRectangle(image.getWidth(), image.getHeight());
-                    PDPage page = new PDPage(pageSize);
-                    document.addPage(page);
-
-                    // Add the image to the page
-                    PDPageContentStream contentStream = new PDPageContentStream(document, page);
-                    contentStream.drawImage(image, 0, 0);
-                    contentStream.close();
-                }
-
-                // Save the PDF
-                updateMessage("Saving PDF...");
-                updateProgress(totalImages, totalImages);
-
-                String pdfFileName = pdfTitle.endsWith(".pdf") ? pdfTitle : pdfTitle + ".pdf";
-                File pdfFile = new File(folder, pdfFileName);
-                document.save(pdfFile);
-                document.close();
-
-                System.out.println("PDF created successfully: " + pdfFile.getAbsolutePath());
-                return null;
-            }
-
-            @Override
-            protected void succeeded() {
-                progressBar.setVisible(false);
-                progressMessageLabel.setVisible(false);
-                cancelButton.setVisible(false);
-                currentTask = null;
-                System.out.println("PDF creation completed successfully");
-
-                // Show success alert
+        OutputProfile profile = model.outputProfileProperty().get();
+        if (model.detectMonochromeProperty().get()) {
+            profile = profile.withMonochromeTolerance(OutputProfile.DEFAULT_MONOCHROME_TOLERANCE);
+        }
+        PdfCreationOptions options = PdfCreationOptions.builder()
+                .recursive(model.recursiveProperty().get())
+                .lowMemory(model.lowMemoryModeProperty().get())
+                .profile(profile)
+                .volumeMaxBytes(model.volumeSizeMegabytesProperty().get() * 1024L * 1024)
+                .imageCache(model.getImageCache())
+                .resumable(model.resumableProperty().get())
+                .append(model.appendProperty().get() && model.volumeSizeMegabytesProperty().get() == 0)
+                .build();
+
+        PdfJob job = model.getJobScheduler().submit(new File(folderPath), pdfTitle, options);
+
+        job.setOnSucceeded(e -> {
+            System.out.println("PDF creation completed successfully");
+            refreshSelectedJob(job);
+
+            // Show success alert once the queue has drained
+            boolean pending = model.getJobScheduler().getJobs().stream().anyMatch(j -> !j.isDone());
+            if (showCompletion && !pending) {
                 Alert alert = new Alert(Alert.AlertType.INFORMATION);
                 alert.setTitle("PDF作成完了");
                 alert.setHeaderText(null);
                 alert.setContentText("できました！");
                 alert.showAndWait();
-
-                // Re-bind the disable property
-                createPdfButton.disableProperty().bind(
-                        Bindings.isEmpty(model.pdfTitleTextProperty())
-                                .or(Bindings.isEmpty(model.folderNameTextProperty())));
+            }
+        });
+
+        job.setOnFailed(e -> {
+            refreshSelectedJob(job);
+            Throwable exception = job.getException();
+            System.err.println("Error creating PDF: " + exception.getMessage());
+            exception.printStackTrace();
+
+            // Show error alert
+            Alert alert = new Alert(Alert.AlertType.WARNING);
+            alert.setTitle("PDF作成エラー");
+            alert.setHeaderText(job.getPdfTitle());
+
+            if (exception instanceof IllegalArgumentException &&
+                    exception.getMessage().contains("画像ファイルが見つかりません")) {
+                alert.setAlertType(Alert.AlertType.WARNING);
+                alert.setContentText(
+                        "選択したフォルダに画像ファイル（.jpg, .jpeg, .png, .bmp, .gif）が見つかりません。\n画像ファイルが含まれているフォルダを選択してください。");
+            } else {
+                alert.setAlertType(Alert.AlertType.ERROR);
+                alert.setContentText("PDFファイルの作成中にエラーが発生しました：\n" + exception.getMessage());
             }
 
-            @Override
-            protected void failed() {
-                progressBar.setVisible(false);
-                progressMessageLabel.setVisible(false);
-                cancelButton.setVisible(false);
-                currentTask = null;
-                Throwable exception = getException();
-                System.err.println("Error creating PDF: " + exception.getMessage());
-                exception.printStackTrace();
-
-                // Show error alert
-                Alert alert = new Alert(Alert.AlertType.WARNING);
-                alert.setTitle("PDF作成エラー");
-                alert.setHeaderText(null);
+            alert.showAndWait();
+        });
 
-                if (exception instanceof IllegalArgumentException &&
-                        exception.getMessage().contains("画像ファイルが見つかりません")) {
-                    alert.setAlertType(Alert.AlertType.WARNING);
-                    alert.setContentText(
-                            "選択したフォルダに画像ファイル（.jpg, .jpeg, .png, .bmp, .gif）が見つかりません。\n画像ファイルが含まれているフォルダを選択してください。");
-                } else {
-                    alert.setAlertType(Alert.AlertType.ERROR);
-                    alert.setContentText("PDFファイルの作成中にエラーが発生しました：\n" + exception.getMessage());
-                }
+        job.setOnCancelled(e -> refreshSelectedJob(job));
+        return job;
+    }
 
-                alert.showAndWait();
+    /**
+     * Starts or stops watching the selected folder to match the settings.
+     */
+    private void updateFolderWatcher() {
+        String folderPath = model.folderNameTextProperty().get();
+        if (!model.watchProperty().get() || folderPath == null || folderPath.isEmpty()) {
+            model.setFolderWatcher(null);
+            return;
+        }
+        try {
+            model.setFolderWatcher(new FolderWatcher(new File(folderPath).toPath(), model.recursiveProperty().get(),
+                    FolderWatcher.DEFAULT_SETTLE_TIME, this::rebuild));
+        } catch (IOException e) {
+            model.setFolderWatcher(null);
+            Alert alert = new Alert(Alert.AlertType.WARNING);
+            alert.setTitle("フォルダの監視");
+            alert.setHeaderText(null);
+            alert.setContentText("フォルダを監視できません：\n" + e.getMessage());
+            alert.showAndWait();
+        }
+    }
 
-                // Re-bind the disable property
-                createPdfButton.disableProperty().bind(
-                        Bindings.isEmpty(model.pdfTitleTextProperty())
-                                .or(Bindings.isEmpty(model.folderNameTextProperty())));
+    /**
+     * Lists the images of the selected folder on a background thread and
+     * shows them in the preview grid.
+     */
+    private void updatePreview() {
+        long generation = ++previewGeneration;
+        String folderPath = model.folderNameTextProperty().get();
+        if (folderPath == null || folderPath.isEmpty()) {
+            thumbnailGrid.setFiles(List.of());
+            pageCountLabel.setText("");
+            return;
+        }
+        boolean recursive = model.recursiveProperty().get();
+        pageCountLabel.setText("読み込み中…");
+        Thread.ofVirtual().name("preview-scan").start(() -> {
+            List<File> files;
+            String message;
+            try {
+                files = ImageScanner.scan(new File(folderPath).toPath(), recursive, true);
+                message = files.size() + " ページ";
+            } catch (IOException e) {
+                files = List.of();
+                message = "フォルダを読めません";
+            } catch (InterruptedException e) {
+                return;
             }
+            List<File> scanned = files;
+            String text = message;
+            Platform.runLater(() -> {
+                if (generation == previewGeneration) {
+                    thumbnailGrid.setFiles(scanned);
+                    pageCountLabel.setText(text);
+                }
+            });
+        });
+    }
 
-            @Override
-            protected void cancelled() {
-                progressBar.setVisible(false);
-                progressMessageLabel.setVisible(false);
-                cancelButton.setVisible(false);
-                currentTask = null;
-                // Re-bind the disable property
-                createPdfButton.disableProperty().bind(
-                        Bindings.isEmpty(model.pdfTitleTextProperty())
-                                .or(Bindings.isEmpty(model.folderNameTextProperty())));
+    /**
+     * Called on the watcher thread once the folder has settled. Waits for the
+     * queued job, so changes made meanwhile lead to exactly one more rebuild.
+     */
+    private void rebuild() {
+        var submitted = new CompletableFuture<PdfJob>();
+        Platform.runLater(() -> {
+            String pdfTitle = model.pdfTitleTextProperty().get();
+            submitted.complete(pdfTitle == null || pdfTitle.isEmpty() ? null : submitJob(false));
+        });
+        try {
+            PdfJob job = submitted.get();
+            Platform.runLater(this::updatePreview);
+            if (job != null) {
+                job.get();
             }
-        };
-
-        // Bind progress bar and message to the task
-        progressBar.progressProperty().bind(currentTask.progressProperty());
-        progressMessageLabel.textProperty().bind(currentTask.messageProperty());
-
-        // Show progress components
-        progressBar.setVisible(true);
-        progressMessageLabel.setVisible(true);
-
-        Thread taskThread = new Thread(currentTask);
-        taskThread.setDaemon(true);
-        taskThread.start();
+        } catch (ExecutionException | CancellationException e) {
+            // Shown in the queue
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @FXML
     private void onCancelPdf() {
-        if (currentTask != null && currentTask.isRunning()) {
-            currentTask.cancel();
+        PdfJob job = jobListView.getSelectionModel().getSelectedItem();
+        if (job != null && !job.isDone()) {
+            job.cancel();
         }
     }
 
-    private List<File> getImageFiles(File folder) {
-        String[] imageExtensions = { ".jpg", ".jpeg", ".png", ".bmp", ".gif" };
-
-        return Arrays.stream(folder.listFiles())
-                .filter(File::isFile)
-                .filter(file -> {
-                    String fileName = file.getName().toLowerCase();
-                    return Arrays.stream(imageExtensions)
-                            .anyMatch(fileName::endsWith);
-                })
-                .sorted(this::naturalCompare)
-                .collect(Collectors.toList());
+    /**
+     * Binds the progress bar and message to the given job, or hides them.
+     */
+    private void showJob(PdfJob job) {
+        progressBar.progressProperty().unbind();
+        progressMessageLabel.textProperty().unbind();
+
+        boolean active = job != null && !job.isDone();
+        if (active) {
+            // Bind progress bar and message to the job
+            progressBar.progressProperty().bind(job.progressProperty());
+            progressMessageLabel.textProperty().bind(job.messageProperty());
+        }
+        progressBar.setVisible(active);
+        progressMessageLabel.setVisible(active);
+        cancelButton.setVisible(active);
     }
 
-    private int naturalCompare(File f1, File f2) {
-        String name1 = f1.getName();
-        String name2 = f2.getName();
-
-        Pattern pattern = Pattern.compile("(\\d+)|(\\D+)");
-        Matcher matcher1 = pattern.matcher(name1);
-        Matcher matcher2 = pattern.matcher(name2);
-
-        while (matcher1.find() && matcher2.find()) {
-            String part1 = matcher1.group();
-            String part2 = matcher2.group();
-
-            // If both parts are numbers, compare numerically
-            if (part1.matches("\\d+") && part2.matches("\\d+")) {
-                int num1 = Integer.parseInt(part1);
-                int num2 = Integer.parseInt(part2);
-                int result = Integer.compare(num1, num2);
-                if (result != 0)
-                    return result;
-            } else {
-                // Otherwise, compare lexicographically (case-insensitive)
-                int result = part1.compareToIgnoreCase(part2);
-                if (result != 0)
-                    return result;
-            }
+    private void refreshSelectedJob(PdfJob job) {
+        if (jobListView.getSelectionModel().getSelectedItem() == job) {
+            showJob(job);
         }
-
-        // If one string is longer, the shorter one comes first
-        return Integer.compare(name1.length(), name2.length());
     }
 }
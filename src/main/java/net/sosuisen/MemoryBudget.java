@@ -0,0 +1,99 @@
+package net.sosuisen;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A byte-denominated budget shared by the stages of an {@link ImagePipeline}.
+ * <p>
+ * Reservations are tracked in KiB internally so that budgets larger than
+ * {@code Integer.MAX_VALUE} bytes can be expressed with a {@link Semaphore}.
+ * A single reservation larger than the whole budget is clamped to the budget,
+ * so one huge image can still proceed once everything else has been released.
+ */
+public class MemoryBudget {
+    private static final int UNIT = 1024;
+
+    private final int totalUnits;
+    private final Semaphore units;
+
+    /**
+     * Creates a budget of the given size.
+     *
+     * @param totalBytes the budget in bytes
+     * @throws IllegalArgumentException if totalBytes is not positive
+     */
+    public MemoryBudget(long totalBytes) {
+        if (totalBytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + totalBytes);
+        }
+        this.totalUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, totalBytes / UNIT));
+        this.units = new Semaphore(totalUnits, true);
+    }
+
+    /**
+     * Reserves the given number of bytes, blocking until they are available.
+     *
+     * @param bytes the number of bytes to reserve
+     * @return the number of bytes actually reserved, which must later be passed
+     *         to {@link #release(long)}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long acquire(long bytes) throws InterruptedException {
+        int n = toUnits(bytes);
+        units.acquire(n);
+        return (long) n * UNIT;
+    }
+
+    /**
+     * Returns previously reserved bytes to the budget.
+     *
+     * @param bytes the number of bytes to release, as returned by
+     *              {@link #acquire(long)}
+     */
+    public void release(long bytes) {
+        int n = toUnits(bytes);
+        if (n > 0) {
+            units.release(n);
+        }
+    }
+
+    /**
+     * Shrinks an existing reservation to what is still needed and returns the
+     * difference to the budget.
+     *
+     * @param reserved the bytes currently reserved
+     * @param needed   the bytes that are still needed
+     * @return the new reservation, which must later be passed to
+     *         {@link #release(long)}
+     */
+    public long shrink(long reserved, long needed) {
+        int have = toUnits(reserved);
+        int keep = Math.min(have, toUnits(needed));
+        if (have > keep) {
+            units.release(have - keep);
+        }
+        return (long) keep * UNIT;
+    }
+
+    /**
+     * @return the total size of this budget in bytes
+     */
+    public long totalBytes() {
+        return (long) totalUnits * UNIT;
+    }
+
+    /**
+     * @return the number of bytes currently available
+     */
+    public long availableBytes() {
+        return (long) units.availablePermits() * UNIT;
+    }
+
+    private int toUnits(long bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        long n = (bytes + UNIT - 1) / UNIT;
+        return (int) Math.min(totalUnits, n);
+    }
+}
@@ -1,5 +1,11 @@
 package net.sosuisen;
 
+import java.io.IOException;
+
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 
@@ -7,6 +13,18 @@ public class Model {
     private StringProperty pdfTitleText = new SimpleStringProperty();
     private StringProperty outputHintText = new SimpleStringProperty();
     private StringProperty folderNameText = new SimpleStringProperty();
+    private BooleanProperty lowMemoryMode = new SimpleBooleanProperty();
+    private BooleanProperty recursive = new SimpleBooleanProperty();
+    private ObjectProperty<OutputProfile> outputProfile = new SimpleObjectProperty<>(OutputProfile.ORIGINAL);
+    private BooleanProperty detectMonochrome = new SimpleBooleanProperty();
+    private ObjectProperty<Integer> volumeSizeMegabytes = new SimpleObjectProperty<>(0);
+    private BooleanProperty watch = new SimpleBooleanProperty();
+    private BooleanProperty resumable = new SimpleBooleanProperty();
+    private BooleanProperty append = new SimpleBooleanProperty();
+    private FolderWatcher folderWatcher;
+    private final JobScheduler jobScheduler = new JobScheduler();
+    private final ImageCache imageCache = openImageCache();
+    private final ThumbnailCache thumbnailCache = openThumbnailCache();
 
     public StringProperty pdfTitleTextProperty() {
         return pdfTitleText;
@@ -19,4 +37,119 @@ public class Model {
     public StringProperty folderNameTextProperty() {
         return folderNameText;
     }
+
+    public BooleanProperty lowMemoryModeProperty() {
+        return lowMemoryMode;
+    }
+
+    public BooleanProperty recursiveProperty() {
+        return recursive;
+    }
+
+    public ObjectProperty<OutputProfile> outputProfileProperty() {
+        return outputProfile;
+    }
+
+    /**
+     * @return whether black-and-white and gray pages are detected and
+     *         embedded with one channel
+     */
+    public BooleanProperty detectMonochromeProperty() {
+        return detectMonochrome;
+    }
+
+    /**
+     * @return the largest size of one output file in MiB, 0 to write a
+     *         single file
+     */
+    public ObjectProperty<Integer> volumeSizeMegabytesProperty() {
+        return volumeSizeMegabytes;
+    }
+
+    /**
+     * @return whether the selected folder is watched and its PDF rebuilt on
+     *         every change
+     */
+    public BooleanProperty watchProperty() {
+        return watch;
+    }
+
+    /**
+     * @return whether completed pages are journaled, so that a cancelled or
+     *         crashed creation goes on where it stopped the next time
+     */
+    public BooleanProperty resumableProperty() {
+        return resumable;
+    }
+
+    /**
+     * @return whether an existing PDF is kept and only the new images are
+     *         added to its end
+     */
+    public BooleanProperty appendProperty() {
+        return append;
+    }
+
+    /**
+     * Replaces the folder watcher, stopping the previous one.
+     *
+     * @param watcher the new watcher, or null to stop watching
+     */
+    public void setFolderWatcher(FolderWatcher watcher) {
+        if (folderWatcher != null) {
+            folderWatcher.close();
+        }
+        folderWatcher = watcher;
+    }
+
+    public JobScheduler getJobScheduler() {
+        return jobScheduler;
+    }
+
+    /**
+     * @return the cache of converted images, or null if it could not be opened
+     */
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * @return the cache of preview thumbnails
+     */
+    public ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
+    private static ImageCache openImageCache() {
+        try {
+            return ImageCache.open(ImageCache.DEFAULT_DIRECTORY, ImageCache.DEFAULT_MAX_BYTES);
+        } catch (IOException e) {
+            // Conversions still work without the cache, they are just slower.
+            System.err.println("Could not open image cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static ThumbnailCache openThumbnailCache() {
+        try {
+            return ThumbnailCache.open(ThumbnailCache.DEFAULT_DIRECTORY);
+        } catch (IOException e) {
+            // Thumbnails are then decoded again after every restart.
+            System.err.println("Could not open thumbnail cache: " + e.getMessage());
+            try {
+                return ThumbnailCache.open(null);
+            } catch (IOException unreachable) {
+                throw new IllegalStateException(unreachable);
+            }
+        }
+    }
+
+    /**
+     * Stops watching and cancels running jobs. Called when the application
+     * exits.
+     */
+    public void close() {
+        setFolderWatcher(null);
+        jobScheduler.close();
+    }
 }
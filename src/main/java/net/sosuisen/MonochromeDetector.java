@@ -0,0 +1,271 @@
+package net.sosuisen;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.filter.FilterFactory;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.CCITTFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Recognizes black-and-white and gray pages among color images and encodes
+ * them with one channel instead of three.
+ * <p>
+ * A pixel counts as gray if its red, green and blue values are no further
+ * apart than the tolerance, and as black or white if it is gray and its value
+ * is within the tolerance of 0 or 255. An image is {@link Content#GRAY} if all
+ * of its pixels are gray, and {@link Content#BILEVEL} if, in addition, no more
+ * than {@link #MAX_MIDTONES} of them are neither black nor white; those are
+ * the anti-aliased edges of text in a scan. Images with transparency are
+ * always {@link Content#COLOR}.
+ * <p>
+ * Bilevel images are thresholded at the middle gray and encoded as CCITT
+ * Group 4, which takes a few bits per line of text; gray images are encoded as
+ * 8-bit DeviceGray. {@link #readSample(byte[])} decodes a small subsampled
+ * copy first, so that a color photo is rejected without a full decode.
+ */
+final class MonochromeDetector {
+    /**
+     * What an image holds, by the fewest channels that represent it.
+     */
+    enum Content {
+        COLOR, GRAY, BILEVEL
+    }
+
+    /**
+     * Largest share of pixels between black and white in a bilevel image.
+     * The anti-aliased edges of a page of text take 2 to 3%; a photo of a
+     * sixth of the page takes more than 15%.
+     */
+    static final double MAX_MIDTONES = 0.05;
+
+    /**
+     * Length in pixels of the longer side of the sample that is decoded
+     * before the full image.
+     */
+    private static final int SAMPLE_SIZE = 512;
+
+    private MonochromeDetector() {
+    }
+
+    /**
+     * Decodes every n-th pixel of an image, so that the result is about
+     * {@link #SAMPLE_SIZE} pixels on the longer side.
+     *
+     * @param data the bytes of the image file
+     * @return the sample, or null if ImageIO cannot decode the image
+     */
+    static BufferedImage readSample(byte[] data) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / SAMPLE_SIZE);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            // For example CMYK JPEGs; they are embedded as they are.
+            return null;
+        }
+    }
+
+    /**
+     * Classifies an image, stopping at the first pixel that is not gray.
+     *
+     * @param image     the image
+     * @param tolerance the tolerance in levels, from 0 to 255
+     * @return the content of the image
+     */
+    static Content classify(BufferedImage image, int tolerance) {
+        if (image.getColorModel().hasAlpha()) {
+            return Content.COLOR;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+        int[] samples = rgbSamples(image);
+        long midtones = 0;
+        for (int y = 0; y < height; y++) {
+            readRow(image, y, row, samples);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                if (Math.max(r, Math.max(g, b)) - Math.min(r, Math.min(g, b)) > tolerance) {
+                    return Content.COLOR;
+                }
+                int gray = luma(r, g, b);
+                if (gray > tolerance && gray < 255 - tolerance) {
+                    midtones++;
+                }
+            }
+        }
+        return midtones <= MAX_MIDTONES * width * height ? Content.BILEVEL : Content.GRAY;
+    }
+
+    /**
+     * @return true if an image with this color model is stored with no more
+     *         than one channel already, so that converting it to gray saves
+     *         nothing
+     */
+    static boolean isSingleChannel(ColorModel colorModel) {
+        return colorModel instanceof IndexColorModel || colorModel.getNumComponents() == 1;
+    }
+
+    /**
+     * Converts an image to 8-bit gray, taking the luma of each pixel.
+     *
+     * @param image an image classified as gray or bilevel
+     * @return a {@link BufferedImage#TYPE_BYTE_GRAY} image whose samples are
+     *         the sRGB gray values, unconverted
+     */
+    static BufferedImage toGray(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        var gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = gray.getRaster();
+        int[] row = new int[width];
+        int[] samples = rgbSamples(image);
+        for (int y = 0; y < height; y++) {
+            readRow(image, y, row, samples);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                row[x] = luma((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+            }
+            raster.setSamples(0, y, width, 1, 0, row);
+        }
+        return gray;
+    }
+
+    /**
+     * Creates an 8-bit DeviceGray image from the samples of a gray image.
+     *
+     * @param document the document that the image is created in
+     * @param gray     an image returned by {@link #toGray(BufferedImage)}
+     * @return the image XObject
+     * @throws IOException if encoding fails
+     */
+    static PDImageXObject createGray(PDDocument document, BufferedImage gray) throws IOException {
+        int width = gray.getWidth();
+        int height = gray.getHeight();
+        var compressed = new ByteArrayOutputStream();
+        try (OutputStream out = ImageEncoder.deflater(compressed)) {
+            int[] row = new int[width];
+            byte[] packed = new byte[width];
+            for (int y = 0; y < height; y++) {
+                gray.getRaster().getSamples(0, y, width, 1, 0, row);
+                ImageEncoder.pack(row, 8, packed);
+                out.write(packed);
+            }
+        }
+        return new PDImageXObject(document, new ByteArrayInputStream(compressed.toByteArray()),
+                COSName.FLATE_DECODE, width, height, 8, PDDeviceGray.INSTANCE);
+    }
+
+    /**
+     * Thresholds an image at the middle gray and encodes it as CCITT Group 4,
+     * with the parameters that {@link CCITTFactory} uses. The rows are packed
+     * here rather than by {@link CCITTFactory#createFromImage}, which reads
+     * and writes one pixel at a time.
+     *
+     * @param document the document that the image is created in
+     * @param image    an image classified as bilevel
+     * @return the image XObject
+     * @throws IOException if encoding fails
+     */
+    static PDImageXObject createBilevel(PDDocument document, BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowBytes = (width + 7) / 8;
+        // One bit per pixel, most significant first, 1 for black
+        byte[] bits = new byte[rowBytes * height];
+        int[] row = new int[width];
+        int[] samples = rgbSamples(image);
+        for (int y = 0; y < height; y++) {
+            readRow(image, y, row, samples);
+            int offset = y * rowBytes;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                if (luma((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF) < 128) {
+                    bits[offset + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                }
+            }
+        }
+
+        var parameters = new COSDictionary();
+        parameters.setInt(COSName.COLUMNS, width);
+        parameters.setInt(COSName.ROWS, height);
+        var encoded = new ByteArrayOutputStream();
+        FilterFactory.INSTANCE.getFilter(COSName.CCITTFAX_DECODE)
+                .encode(new ByteArrayInputStream(bits), encoded, parameters, 0);
+        var pdImage = new PDImageXObject(document, new ByteArrayInputStream(encoded.toByteArray()),
+                COSName.CCITTFAX_DECODE, width, height, 1, PDDeviceGray.INSTANCE);
+        // Group 4
+        parameters.setInt(COSName.K, -1);
+        pdImage.getCOSObject().setItem(COSName.DECODE_PARMS, parameters);
+        return pdImage;
+    }
+
+    /**
+     * @return a buffer for one row of samples if the image is plain 8-bit
+     *         sRGB, which {@link #readRow} then reads from the raster
+     *         directly; null if it has to go through {@link BufferedImage#getRGB}
+     */
+    private static int[] rgbSamples(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        boolean plain = !(colorModel instanceof IndexColorModel) && !colorModel.hasAlpha()
+                && colorModel.getColorSpace().isCS_sRGB() && image.getRaster().getNumBands() == 3;
+        for (int band = 0; plain && band < 3; band++) {
+            plain = colorModel.getComponentSize(band) == 8;
+        }
+        return plain ? new int[3 * image.getWidth()] : null;
+    }
+
+    /**
+     * Reads one row of an image as packed RGB values.
+     */
+    private static void readRow(BufferedImage image, int y, int[] row, int[] samples) {
+        int width = image.getWidth();
+        if (samples == null) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            return;
+        }
+        image.getRaster().getPixels(0, y, width, 1, samples);
+        for (int x = 0, i = 0; x < width; x++, i += 3) {
+            row[x] = samples[i] << 16 | samples[i + 1] << 8 | samples[i + 2];
+        }
+    }
+
+    /**
+     * @return the Rec. 601 luma of an sRGB color; exactly the value of a
+     *         color whose three components are equal
+     */
+    private static int luma(int r, int g, int b) {
+        return (77 * r + 150 * g + 29 * b + 128) >> 8;
+    }
+}
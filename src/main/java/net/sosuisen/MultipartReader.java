@@ -0,0 +1,230 @@
+package net.sosuisen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Reads a {@code multipart/form-data} request body one part at a time,
+ * without holding more than a small buffer of it in memory.
+ * <p>
+ * The body of each part is an {@link InputStream} that ends at the next
+ * boundary; {@link #next()} skips whatever of the previous part was not read.
+ * Only what the conversion server needs is understood: the field name and
+ * the file name of the {@code Content-Disposition} header.
+ */
+final class MultipartReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    /**
+     * One part of the body.
+     *
+     * @param name     the form field name, or null if none is given
+     * @param fileName the file name without any folder, or null if the part
+     *                 is not a file
+     * @param body     the content of the part; valid until the next call of
+     *                 {@link #next()}
+     */
+    record Part(String name, String fileName, InputStream body) {
+    }
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int start;
+    private int end;
+    private boolean eof;
+    // The preamble before the first boundary is skipped like a part
+    private boolean partDone;
+    private boolean finished;
+
+    /**
+     * @param in       the request body
+     * @param boundary the boundary parameter of the content type
+     */
+    MultipartReader(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        // The first boundary has no line break in front of it
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        end = 2;
+    }
+
+    /**
+     * Returns the boundary of a {@code multipart/form-data} content type.
+     *
+     * @param contentType the Content-Type header
+     * @return the boundary, or null if the content type is not multipart
+     *         form data
+     */
+    static String boundary(String contentType) {
+        if (contentType == null
+                || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        return parameter(contentType, "boundary");
+    }
+
+    /**
+     * Skips the rest of the current part and reads the headers of the next.
+     *
+     * @return the next part, or null after the last one
+     * @throws IOException if the body ends before the closing boundary or a
+     *                     header is too long
+     */
+    Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        byte[] skip = new byte[8192];
+        while (!partDone) {
+            readBody(skip, 0, skip.length);
+        }
+        // After a boundary comes either "--" for the end or a line break
+        int first = readByte();
+        int second = readByte();
+        if (first == '-' && second == '-') {
+            finished = true;
+            return null;
+        }
+        String name = null;
+        String fileName = null;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+                String disposition = line.substring(colon + 1);
+                name = parameter(disposition, "name");
+                fileName = parameter(disposition, "filename");
+                if (fileName != null) {
+                    // Some browsers send the full path of the file
+                    int folder = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+                    fileName = fileName.substring(folder + 1);
+                }
+            }
+        }
+        partDone = false;
+        return new Part(name, fileName, new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int offset, int length) throws IOException {
+                return readBody(b, offset, length);
+            }
+        });
+    }
+
+    private int readBody(byte[] b, int offset, int length) throws IOException {
+        if (partDone) {
+            return -1;
+        }
+        if (length == 0) {
+            return 0;
+        }
+        fill(delimiter.length);
+        int found = indexOfDelimiter();
+        int available;
+        if (found >= 0) {
+            available = found - start;
+            if (available == 0) {
+                start += delimiter.length;
+                partDone = true;
+                return -1;
+            }
+        } else if (eof) {
+            throw new IOException("The multipart body ends before its closing boundary");
+        } else {
+            // The tail could be the start of a delimiter
+            available = end - start - (delimiter.length - 1);
+        }
+        int n = Math.min(length, available);
+        System.arraycopy(buffer, start, b, offset, n);
+        start += n;
+        return n;
+    }
+
+    private int indexOfDelimiter() {
+        int last = end - delimiter.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int readByte() throws IOException {
+        fill(1);
+        if (start == end) {
+            throw new IOException("The multipart body ends before its closing boundary");
+        }
+        return buffer[start++] & 0xff;
+    }
+
+    private String readLine() throws IOException {
+        var line = new ByteArrayOutputStream();
+        while (true) {
+            int b = readByte();
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+            if (line.size() > MAX_HEADER_BYTES) {
+                throw new IOException("A multipart header is longer than " + MAX_HEADER_BYTES + " bytes");
+            }
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads until at least the given number of bytes are buffered or the body
+     * ends.
+     */
+    private void fill(int needed) throws IOException {
+        if (end - start >= needed || eof) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < needed && !eof) {
+            int n = in.read(buffer, end, buffer.length - end);
+            if (n < 0) {
+                eof = true;
+            } else {
+                end += n;
+            }
+        }
+    }
+
+    /**
+     * @return the value of a {@code key=value} or {@code key="value"}
+     *         parameter of a header, or null if it is not there
+     */
+    private static String parameter(String header, String key) {
+        for (String parameter : header.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase(key)) {
+                String value = parameter.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,164 @@
+package net.sosuisen;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A file name prepared for natural ordering, so that {@code page2.png} sorts
+ * before {@code page10.png}.
+ * <p>
+ * A name is split into runs of digits and runs of other characters. Digit
+ * runs compare by numeric value, with no limit on their length; other runs
+ * compare case-insensitively. Names that are still equal are ordered by fewer
+ * leading zeros ({@code 1} before {@code 01}) and finally by the exact name,
+ * so every pair of different names has the same, fixed order.
+ * <p>
+ * The case-folded characters are computed once when the key is created;
+ * {@link #compareTo} only scans them and allocates nothing.
+ */
+public final class NaturalSortKey implements Comparable<NaturalSortKey> {
+    private final String name;
+    private final char[] folded;
+
+    private NaturalSortKey(String name) {
+        this.name = name;
+        this.folded = new char[name.length()];
+        for (int i = 0; i < folded.length; i++) {
+            // The same folding as String.compareToIgnoreCase
+            folded[i] = Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+    }
+
+    /**
+     * @param name the file name
+     * @return the sort key of the name
+     */
+    public static NaturalSortKey of(String name) {
+        return new NaturalSortKey(name);
+    }
+
+    /**
+     * @return the name this key was created from
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sorts a list in natural order of the names of its elements. Each name
+     * is prepared once, and large lists are sorted on several threads.
+     *
+     * @param <T>    the element type
+     * @param items  the list to sort in place
+     * @param nameOf returns the name of an element
+     */
+    public static <T> void sort(List<T> items, Function<? super T, String> nameOf) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Entry<T>[] entries = new Entry[items.size()];
+        for (int i = 0; i < entries.length; i++) {
+            T item = items.get(i);
+            entries[i] = new Entry<>(of(nameOf.apply(item)), item);
+        }
+        // Falls back to a sequential sort for small arrays
+        Arrays.parallelSort(entries);
+        for (int i = 0; i < entries.length; i++) {
+            items.set(i, entries[i].item());
+        }
+    }
+
+    @Override
+    public int compareTo(NaturalSortKey other) {
+        char[] a = folded;
+        char[] b = other.folded;
+        int i = 0;
+        int j = 0;
+        int zeroBias = 0;
+        while (i < a.length && j < b.length) {
+            if (isDigit(a[i]) && isDigit(b[j])) {
+                // Skip leading zeros, then the longer run is the larger number
+                int startA = i;
+                int startB = j;
+                while (i < a.length && a[i] == '0') {
+                    i++;
+                }
+                while (j < b.length && b[j] == '0') {
+                    j++;
+                }
+                int zerosA = i - startA;
+                int zerosB = j - startB;
+                int endA = i;
+                int endB = j;
+                while (endA < a.length && isDigit(a[endA])) {
+                    endA++;
+                }
+                while (endB < b.length && isDigit(b[endB])) {
+                    endB++;
+                }
+                int result = Integer.compare(endA - i, endB - j);
+                for (; result == 0 && i < endA; i++, j++) {
+                    result = Character.compare(a[i], b[j]);
+                }
+                if (result != 0) {
+                    return result;
+                }
+                if (zeroBias == 0) {
+                    zeroBias = Integer.compare(zerosA, zerosB);
+                }
+                i = endA;
+                j = endB;
+            } else if (!isDigit(a[i]) && !isDigit(b[j])) {
+                // Compare two text runs; a run that ends first is the smaller one
+                while (i < a.length && j < b.length && !isDigit(a[i]) && !isDigit(b[j])) {
+                    if (a[i] != b[j]) {
+                        return Character.compare(a[i], b[j]);
+                    }
+                    i++;
+                    j++;
+                }
+                boolean moreA = i < a.length && !isDigit(a[i]);
+                boolean moreB = j < b.length && !isDigit(b[j]);
+                if (moreA != moreB) {
+                    return moreA ? 1 : -1;
+                }
+            } else {
+                // A number and text compare by their first characters, as in plain string order
+                return Character.compare(a[i], b[j]);
+            }
+        }
+        if (i < a.length || j < b.length) {
+            // Equal so far; the name with fewer runs comes first
+            return i < a.length ? 1 : -1;
+        }
+        if (zeroBias != 0) {
+            return zeroBias;
+        }
+        return name.compareTo(other.name);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof NaturalSortKey && name.equals(((NaturalSortKey) obj).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private record Entry<T>(NaturalSortKey key, T item) implements Comparable<Entry<T>> {
+        @Override
+        public int compareTo(Entry<T> other) {
+            return key.compareTo(other.key);
+        }
+    }
+}
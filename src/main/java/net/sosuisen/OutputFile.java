@@ -0,0 +1,221 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A PDF file that is written under a temporary name and only appears under
+ * its final name once it is complete.
+ * <p>
+ * The data goes through a {@link #BUFFER_SIZE} direct buffer into a
+ * {@link FileChannel} on a hidden {@code .part} file in the target's folder,
+ * so it can be renamed atomically onto the target; a crash or a failed save
+ * leaves any earlier PDF of the same name as it was. {@link #commit()} forces
+ * the data to the device as the {@link SyncPolicy} says and renames the file;
+ * the two steps are also available on their own, as {@link #complete()} and
+ * {@link #moveIntoPlace()}, so that several files can be completed first and
+ * renamed together. {@link #close()} without a commit deletes it.
+ * <p>
+ * Before each buffer is written the cancellation check is polled, and a
+ * cancelled save stops with a {@link CancellationException}, so a cancelled
+ * run does not finish writing a file only to delete it.
+ */
+final class OutputFile implements AutoCloseable {
+    /**
+     * Size of the write buffer; a PDF is written in chunks of this size.
+     */
+    static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final Path target;
+    private final Path temp;
+    private final SyncPolicy syncPolicy;
+    private final BooleanSupplier cancelled;
+    private final FileChannel channel;
+    // Dropped once the file is complete, so that completed files waiting to be renamed hold no direct memory
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long bytesWritten;
+    private long writeNanos;
+    private long syncNanos;
+    private boolean committed;
+
+    private OutputFile(Path target, Path temp, FileChannel channel, SyncPolicy syncPolicy,
+            BooleanSupplier cancelled) {
+        this.target = target;
+        this.temp = temp;
+        this.channel = channel;
+        this.syncPolicy = syncPolicy;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Creates the temporary file next to the target.
+     *
+     * @param target     the final file
+     * @param syncPolicy how the file is forced to the device on commit
+     * @param cancelled  polled before each buffer is written
+     * @return the output file
+     * @throws IOException if the temporary file cannot be created
+     */
+    static OutputFile create(File target, SyncPolicy syncPolicy, BooleanSupplier cancelled) throws IOException {
+        Path path = target.toPath().toAbsolutePath();
+        while (true) {
+            // Hidden, so that the folder watcher and image scan pass over it. Not
+            // Files.createTempFile, which would leave the PDF readable by its owner only.
+            Path temp = path.resolveSibling("." + path.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+            try {
+                var channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return new OutputFile(path, temp, channel, syncPolicy, cancelled);
+            } catch (FileAlreadyExistsException e) {
+                // Try another name
+            }
+        }
+    }
+
+    /**
+     * @return a stream that writes to the temporary file; closing it does
+     *         not commit
+     */
+    OutputStream stream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                buffer.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    if (!buffer.hasRemaining()) {
+                        drain();
+                    }
+                    int chunk = Math.min(length, buffer.remaining());
+                    buffer.put(bytes, offset, chunk);
+                    offset += chunk;
+                    length -= chunk;
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the rest of the buffer, forces the file as the policy says and
+     * renames it onto the target, replacing any earlier file.
+     *
+     * @throws IOException if writing, forcing or renaming fails
+     */
+    void commit() throws IOException {
+        complete();
+        moveIntoPlace();
+    }
+
+    /**
+     * Writes the rest of the buffer, forces the file as the policy says and
+     * closes it, leaving it under its temporary name. The buffer is released;
+     * nothing more can be written.
+     *
+     * @throws IOException if writing or forcing fails
+     */
+    void complete() throws IOException {
+        drain();
+        buffer = null;
+        long start = System.nanoTime();
+        if (syncPolicy != SyncPolicy.NONE) {
+            channel.force(true);
+        }
+        channel.close();
+        syncNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Renames the {@link #complete() completed} file onto the target,
+     * replacing any earlier file.
+     *
+     * @throws IOException if renaming fails
+     */
+    void moveIntoPlace() throws IOException {
+        long start = System.nanoTime();
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+        if (syncPolicy == SyncPolicy.FILE_AND_DIRECTORY) {
+            forceDirectory(target.getParent());
+        }
+        syncNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return the bytes written so far
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the time spent writing to the channel, in nanoseconds
+     */
+    long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * @return the time spent forcing and renaming the file, in nanoseconds
+     */
+    long getSyncNanos() {
+        return syncNanos;
+    }
+
+    /**
+     * Closes the file, and deletes it unless it was committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void drain() throws IOException {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException();
+        }
+        long start = System.nanoTime();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+        writeNanos += System.nanoTime() - start;
+    }
+
+    private static void forceDirectory(Path directory) {
+        try (FileChannel folder = FileChannel.open(directory, StandardOpenOption.READ)) {
+            folder.force(true);
+        } catch (IOException e) {
+            // Windows cannot open a folder as a channel; the rename is still done.
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.sosuisen;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Controls the resolution and compression of the embedded images.
+ * <p>
+ * A profile can cap the longest side of an image in pixels, cap its
+ * resolution relative to the DPI recorded in the file, and convert it to
+ * grayscale. Images that are reduced or converted are re-encoded as JPEG with
+ * the given quality; all others are embedded unchanged. Pages keep the size of
+ * the original image either way, so only the sharpness of the page changes.
+ * <p>
+ * A profile can also detect black-and-white and gray pages among color
+ * images, such as document scans saved as 24-bit PNG or JPEG files. Pages
+ * whose pixels are all within the tolerance of gray are embedded as 8-bit
+ * DeviceGray, and gray pages that are almost only black and white are
+ * thresholded and embedded as CCITT Group 4; see {@link MonochromeDetector}.
+ *
+ * @param id                  a short name used on the command line
+ * @param label               the name shown in the UI
+ * @param maxPixels           the largest width or height in pixels, or 0 for
+ *                            no limit
+ * @param targetDpi           the largest resolution for files that record
+ *                            their DPI, or 0 for no limit
+ * @param jpegQuality         the JPEG quality of re-encoded images, from 0 to 1
+ * @param grayscale           whether color images are converted to grayscale
+ * @param monochromeTolerance how far, in levels of 0 to 255, a pixel may be
+ *                            from gray, black or white and still count as
+ *                            such, or -1 not to detect monochrome pages
+ */
+public record OutputProfile(String id, String label, int maxPixels, int targetDpi, float jpegQuality,
+        boolean grayscale, int monochromeTolerance) {
+
+    /**
+     * The tolerance offered in the UI: enough for the noise of a JPEG scan.
+     */
+    public static final int DEFAULT_MONOCHROME_TOLERANCE = 32;
+
+    /**
+     * Embeds every image at its original resolution and encoding.
+     */
+    public static final OutputProfile ORIGINAL = new OutputProfile("original", "元の画質", 0, 0, 0.9f, false);
+
+    /**
+     * About 300 dpi on an A4 page.
+     */
+    public static final OutputProfile STANDARD = new OutputProfile("standard", "標準（A4 300dpi相当）",
+            3508, 300, 0.85f, false);
+
+    /**
+     * About 150 dpi on an A4 page, for sharing by e-mail or on the web.
+     */
+    public static final OutputProfile SMALL = new OutputProfile("small", "軽量（A4 150dpi相当）",
+            1754, 150, 0.75f, false);
+
+    /**
+     * Grayscale at about 200 dpi on an A4 page, for text documents.
+     */
+    public static final OutputProfile GRAYSCALE = new OutputProfile("gray", "白黒（文書向け）",
+            2339, 200, 0.8f, true);
+
+    /**
+     * The profiles offered in the UI, in display order.
+     */
+    public static final List<OutputProfile> PRESETS = List.of(ORIGINAL, STANDARD, SMALL, GRAYSCALE);
+
+    public OutputProfile {
+        if (maxPixels < 0 || targetDpi < 0) {
+            throw new IllegalArgumentException("maxPixels and targetDpi must not be negative");
+        }
+        if (!(jpegQuality >= 0 && jpegQuality <= 1)) {
+            throw new IllegalArgumentException("jpegQuality must be 0 to 1: " + jpegQuality);
+        }
+        if (monochromeTolerance < -1 || monochromeTolerance > 255) {
+            throw new IllegalArgumentException("monochromeTolerance must be -1 to 255: " + monochromeTolerance);
+        }
+    }
+
+    /**
+     * Creates a profile that does not detect monochrome pages.
+     */
+    public OutputProfile(String id, String label, int maxPixels, int targetDpi, float jpegQuality,
+            boolean grayscale) {
+        this(id, label, maxPixels, targetDpi, jpegQuality, grayscale, -1);
+    }
+
+    /**
+     * @param tolerance the monochrome tolerance from 0 to 255, or -1 not to
+     *                  detect monochrome pages
+     * @return a copy of this profile with the given tolerance
+     */
+    public OutputProfile withMonochromeTolerance(int tolerance) {
+        return new OutputProfile(id, label, maxPixels, targetDpi, jpegQuality, grayscale, tolerance);
+    }
+
+    /**
+     * Returns the preset with the given id.
+     *
+     * @param id the id, case-insensitive
+     * @return the preset
+     * @throws IllegalArgumentException if there is no such preset
+     */
+    public static OutputProfile forId(String id) {
+        for (OutputProfile profile : PRESETS) {
+            if (profile.id.equalsIgnoreCase(id)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown profile: " + id);
+    }
+
+    /**
+     * @return true if images are embedded unchanged
+     */
+    public boolean isOriginal() {
+        return maxPixels == 0 && targetDpi == 0 && !grayscale;
+    }
+
+    /**
+     * @return true if black-and-white and gray pages are detected
+     */
+    public boolean detectsMonochrome() {
+        return monochromeTolerance >= 0;
+    }
+
+    /**
+     * Returns the factor by which an image is reduced.
+     *
+     * @param width  the image width in pixels
+     * @param height the image height in pixels
+     * @param dpi    the resolution recorded in the file, or 0 if unknown
+     * @return the factor, at most 1
+     */
+    public double scale(int width, int height, double dpi) {
+        double scale = 1;
+        if (maxPixels > 0) {
+            scale = Math.min(scale, (double) maxPixels / Math.max(width, height));
+        }
+        if (targetDpi > 0 && dpi > 0) {
+            scale = Math.min(scale, targetDpi / dpi);
+        }
+        return scale;
+    }
+
+    /**
+     * Returns the source subsampling step for a reduction: the largest whole
+     * step that still reads at least the target number of pixels.
+     *
+     * @param scale the factor returned by {@link #scale}
+     * @return the step in both directions, at least 1
+     */
+    public static int subsampling(double scale) {
+        return scale >= 1 ? 1 : Math.max(1, (int) Math.floor(1 / scale));
+    }
+
+    /**
+     * @return a string that identifies the output of this profile in the
+     *         {@link ImageCache}; empty for {@link #isOriginal() original}
+     *         without monochrome detection
+     */
+    String cacheKey() {
+        String key = isOriginal() ? ""
+                : String.format(Locale.ROOT, "/p%d,%d,%.3f,%b", maxPixels, targetDpi, jpegQuality, grayscale);
+        return detectsMonochrome() ? key + "/m" + monochromeTolerance : key;
+    }
+
+    /**
+     * @return the label, so that controls can show profiles directly
+     */
+    @Override
+    public String toString() {
+        return label;
+    }
+}
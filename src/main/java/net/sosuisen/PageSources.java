@@ -0,0 +1,66 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Calendar;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Records in each page the image file it was made from, so that a later run
+ * can tell which images a PDF already contains.
+ * <p>
+ * The file name, relative to the image folder and with {@code /} between
+ * folder names, is kept as private data of this application in the page's
+ * piece dictionary ({@code /PieceInfo}), which other applications pass over.
+ */
+final class PageSources {
+    private static final COSName APPLICATION = COSName.getPDFName("SosuisenPdfCreator");
+    private static final COSName SOURCE = COSName.getPDFName("Source");
+
+    private PageSources() {
+    }
+
+    /**
+     * @param folder the image folder
+     * @param file   an image in the folder or one of its subfolders
+     * @return the name recorded for the image
+     */
+    static String name(File folder, File file) {
+        Path relative = folder.toPath().toAbsolutePath().relativize(file.toPath().toAbsolutePath());
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Records the source of a page.
+     *
+     * @param page     the page
+     * @param name     the name returned by {@link #name}
+     * @param modified the time of the run, which the piece dictionary requires
+     */
+    static void record(PDPage page, String name, Calendar modified) {
+        var data = new COSDictionary();
+        data.setString(SOURCE, name);
+        var application = new COSDictionary();
+        application.setDate(COSName.LAST_MODIFIED, modified);
+        application.setItem(COSName.PRIVATE, data);
+        var pieceInfo = new COSDictionary();
+        pieceInfo.setItem(APPLICATION, application);
+        page.getCOSObject().setItem(COSName.PIECE_INFO, pieceInfo);
+        page.getCOSObject().setDate(COSName.LAST_MODIFIED, modified);
+    }
+
+    /**
+     * @param page a page
+     * @return the name of the image the page was made from, or null if the
+     *         page records none
+     */
+    static String read(PDPage page) {
+        COSDictionary pieceInfo = page.getCOSObject().getCOSDictionary(COSName.PIECE_INFO);
+        COSDictionary application = pieceInfo != null ? pieceInfo.getCOSDictionary(APPLICATION) : null;
+        COSDictionary data = application != null ? application.getCOSDictionary(COSName.PRIVATE) : null;
+        return data != null ? data.getString(SOURCE) : null;
+    }
+}
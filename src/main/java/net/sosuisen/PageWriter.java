@@ -0,0 +1,51 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Receives the pages of a run in page order and writes the output.
+ * <p>
+ * Used by the assembler thread only. If the run fails or is cancelled,
+ * {@link #close()} leaves no partial output behind.
+ */
+interface PageWriter extends AutoCloseable {
+    /**
+     * What was drawn on a page.
+     *
+     * @param source        where the image came from
+     * @param importedBytes the bytes copied into the document, 0 if the page
+     *                      shares an XObject
+     */
+    record AddedPage(ImageSource source, long importedBytes) {
+    }
+
+    /**
+     * Adds a page for the prepared image.
+     *
+     * @param prepared the next image from the pipeline
+     * @return what was drawn on the page
+     * @throws IOException          if the image cannot be added
+     * @throws InterruptedException if interrupted while waiting
+     */
+    AddedPage addPage(PreparedImage prepared) throws IOException, InterruptedException;
+
+    /**
+     * Writes what has not been written yet and waits until it is done.
+     *
+     * @return the written files in page order
+     * @throws IOException           if writing fails
+     * @throws CancellationException if the run was cancelled while writing
+     * @throws InterruptedException  if interrupted while waiting
+     */
+    List<File> finish() throws IOException, InterruptedException;
+
+    /**
+     * Releases the documents, and undoes the output unless {@link #finish()}
+     * has completed.
+     */
+    @Override
+    void close();
+}
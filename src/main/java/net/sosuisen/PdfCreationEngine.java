@@ -0,0 +1,274 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Combines the images of a folder into a single PDF, or a series of volumes of
+ * limited size, one page per image in natural filename order.
+ * <p>
+ * The engine does not depend on JavaFX, so it can be driven by the GUI, by
+ * {@link CliLauncher}, or by any other caller. Progress and cancellation are
+ * exchanged through a {@link PdfCreationListener}. An engine holds no
+ * per-run state and may be used by several threads at once.
+ * <p>
+ * A {@link PdfCreationOptions#isResumable() resumable} run records every page
+ * in a {@link ResumeJournal}; a later run for the same folder and title
+ * replays the recorded pages and prepares only the rest. In
+ * {@link PdfCreationOptions#isAppend() append} mode an existing PDF is kept
+ * and only the images it does not contain yet are added to it, through an
+ * {@link AppendWriter}.
+ */
+public class PdfCreationEngine {
+    private final PdfCreationOptions options;
+    private final Semaphore encodePermits;
+    private final MemoryBudget memoryBudget;
+
+    /**
+     * Creates an engine with the default options.
+     */
+    public PdfCreationEngine() {
+        this(PdfCreationOptions.defaults());
+    }
+
+    /**
+     * Creates an engine with the given options. Each run gets its own encode
+     * limit and memory budget from the options.
+     *
+     * @param options the creation settings
+     */
+    public PdfCreationEngine(PdfCreationOptions options) {
+        this(options, null, null);
+    }
+
+    /**
+     * Creates an engine whose runs share an encode limit and a memory budget
+     * with other engines, for example all jobs of a {@link JobScheduler}.
+     * The worker count and memory budget in the options are then ignored.
+     *
+     * @param options       the creation settings
+     * @param encodePermits limits concurrent decodes/encodes, or null to use
+     *                      {@link PdfCreationOptions#getWorkers()} per run
+     * @param memoryBudget  limits read-ahead, or null to use
+     *                      {@link PdfCreationOptions#getMemoryBudget()} per run
+     */
+    public PdfCreationEngine(PdfCreationOptions options, Semaphore encodePermits, MemoryBudget memoryBudget) {
+        this.options = options;
+        this.encodePermits = encodePermits;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the creation settings of this engine
+     */
+    public PdfCreationOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns the PDF file that {@link #create} writes for the given title
+     * when the output is not split.
+     *
+     * @param folder   the image folder
+     * @param pdfTitle the PDF title, with or without the .pdf extension
+     * @return the output file inside the folder
+     */
+    public static File outputFile(File folder, String pdfTitle) {
+        return new File(folder, baseName(pdfTitle) + ".pdf");
+    }
+
+    /**
+     * @return the title without a .pdf extension
+     */
+    static String baseName(String pdfTitle) {
+        return pdfTitle.endsWith(".pdf") ? pdfTitle.substring(0, pdfTitle.length() - 4) : pdfTitle;
+    }
+
+    /**
+     * Creates a PDF from the images in the given folder and saves it in the
+     * same folder.
+     *
+     * @param folder   the folder that contains the images
+     * @param pdfTitle the PDF title, also used as the file name
+     * @param listener receives progress and is polled for cancellation
+     * @return the written PDF file, or the first volume if the output is
+     *         {@link PdfCreationOptions#isSplit() split}
+     * @throws IllegalArgumentException if the folder contains no images
+     * @throws CancellationException    if the listener cancelled the creation
+     * @throws IOException              if reading an image or writing the PDF fails
+     * @throws InterruptedException     if the calling thread is interrupted
+     */
+    public File create(File folder, String pdfTitle, PdfCreationListener listener)
+            throws IOException, InterruptedException {
+        return createVolumes(folder, pdfTitle, listener).get(0);
+    }
+
+    /**
+     * Creates a PDF from the images in the given folder and saves it in the
+     * same folder, split into volumes named {@code <title>_001.pdf} and so on
+     * if the options set a volume limit.
+     *
+     * @param folder   the folder that contains the images
+     * @param pdfTitle the PDF title, also used as the file name
+     * @param listener receives progress and is polled for cancellation
+     * @return the written PDF files in page order
+     * @throws IllegalArgumentException if the folder contains no images
+     * @throws CancellationException    if the listener cancelled the creation;
+     *                                  an appended PDF is left as it was,
+     *                                  volumes written so far are deleted, and
+     *                                  a {@link PdfCreationOptions#isResumable()
+     *                                  resumable} run keeps its journal
+     * @throws IOException              if reading an image or writing the PDF fails
+     * @throws InterruptedException     if the calling thread is interrupted
+     */
+    public List<File> createVolumes(File folder, String pdfTitle, PdfCreationListener listener)
+            throws IOException, InterruptedException {
+        var metrics = new RunMetrics();
+        var jobEvent = new FlightEvents.JobEvent();
+        jobEvent.begin();
+        List<File> imageFiles = ImageScanner.scan(folder.toPath(), options.isRecursive(),
+                options.isDetectContent(), metrics);
+
+        if (imageFiles.isEmpty()) {
+            System.out.println("No image files found in the selected folder.");
+            throw new IllegalArgumentException("選択したフォルダに画像ファイルが見つかりません。");
+        }
+
+        List<File> pdfFiles;
+        // In append mode only the images the existing PDF lacks become pages
+        try (AppendWriter appender = options.isAppend()
+                ? AppendWriter.open(folder, pdfTitle, options, metrics, listener::isCancelled)
+                : null) {
+            List<File> pageFiles = appender != null ? appender.newImages(imageFiles) : imageFiles;
+            int totalImages = pageFiles.size();
+            listener.started(totalImages, metrics);
+
+            // Pages completed by an interrupted run are taken from its journal
+            ResumeJournal journal = options.isResumable()
+                    ? ResumeJournal.open(folder, pdfTitle, pageFiles, options)
+                    : null;
+            int resumed = journal != null ? journal.getCompletedCount() : 0;
+
+            // Images are decoded and encoded in parallel by the pipeline;
+            // pages are added here, one at a time, in sorted order.
+            Semaphore permits = encodePermits != null ? encodePermits : new Semaphore(options.getWorkers());
+            MemoryBudget budget = memoryBudget != null ? memoryBudget : new MemoryBudget(options.getMemoryBudget());
+            ImagePipeline pipeline = new ImagePipeline(pageFiles, resumed, options, permits, budget, metrics);
+            try (journal;
+                    PageWriter pages = appender != null ? appender
+                            : new VolumeWriter(folder, pdfTitle, options, metrics, listener::isCancelled)) {
+                for (int i = 0; i < totalImages; i++) {
+                    // Check for cancellation
+                    if (listener.isCancelled()) {
+                        throw new CancellationException();
+                    }
+                    listener.imageStarted(i, totalImages, pageFiles.get(i));
+
+                    PreparedImage replay = i < resumed ? journal.replay(i, pageFiles.get(i)) : null;
+                    if (i < resumed && replay == null) {
+                        // The journal was cut back to this page; it and the rest are prepared again
+                        resumed = i;
+                        pipeline.close();
+                        pipeline = new ImagePipeline(pageFiles, i, options, permits, budget, metrics);
+                    }
+                    boolean replayed = replay != null;
+                    PageWriter.AddedPage page;
+                    try (PreparedImage prepared = replayed ? replay : pipeline.next()) {
+                        var span = metrics.start(RunMetrics.Stage.ASSEMBLE, prepared.getFile().getName());
+                        page = pages.addPage(prepared);
+                        span.end(page.importedBytes());
+                        if (journal != null && !replayed) {
+                            journal.record(prepared);
+                        }
+                    }
+                    ImageSource source = replayed ? ImageSource.RESUMED : page.source();
+                    metrics.pageAdded(source, page.importedBytes());
+                    listener.imageCompleted(i, totalImages, source);
+                }
+
+                // Save the PDF; full volumes are already being saved
+                listener.saving();
+                pdfFiles = pages.finish();
+                if (journal != null) {
+                    journal.delete();
+                }
+            } finally {
+                pipeline.close();
+            }
+        }
+        metrics.finished(pdfFiles);
+
+        jobEvent.end();
+        if (jobEvent.shouldCommit()) {
+            jobEvent.title = pdfTitle;
+            jobEvent.pages = (int) metrics.getPageCount();
+            jobEvent.bytesOut = metrics.getPdfBytes();
+            jobEvent.commit();
+        }
+        if (options.isReport()) {
+            try {
+                metrics.writeReport(new File(folder, baseName(pdfTitle) + ".report.json"));
+            } catch (IOException e) {
+                // The PDF is complete; a missing report must not fail the job.
+                System.err.println("Could not write the report: " + e.getMessage());
+            }
+        }
+        listener.finished(metrics);
+
+        for (File pdfFile : pdfFiles) {
+            System.out.println("PDF created successfully: " + pdfFile.getAbsolutePath());
+        }
+        return pdfFiles;
+    }
+
+    /**
+     * Adds a page and draws the image over the whole page.
+     *
+     * @param pageSize the page size, or null for one point per image pixel
+     * @return the added page
+     */
+    static PDPage addImagePage(PDDocument document, PDImageXObject image, PDRectangle pageSize)
+            throws IOException {
+        if (pageSize == null) {
+            pageSize = new PDRectangle(image.getWidth(), image.getHeight());
+        }
+        PDPage page = new PDPage(pageSize);
+        document.addPage(page);
+
+        try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
+            // A reduced image is stretched back to the original page size
+            contentStream.drawImage(image, 0, 0, pageSize.getWidth(), pageSize.getHeight());
+        }
+        return page;
+    }
+
+    /**
+     * Lists the image files in the folder in natural filename order. Files
+     * without an image extension are included if their content is an image.
+     *
+     * @param folder the folder to scan
+     * @return the image files
+     * @throws IOException          if the folder does not exist or cannot be read
+     * @throws InterruptedException if interrupted while scanning
+     */
+    public static List<File> getImageFiles(File folder) throws IOException, InterruptedException {
+        return ImageScanner.scan(folder.toPath(), false, true);
+    }
+
+    /**
+     * Compares file names in natural order. Sorting many files is faster with
+     * {@link NaturalSortKey#sort}, which prepares each name only once.
+     */
+    static int naturalCompare(File f1, File f2) {
+        return NaturalSortKey.of(f1.getName()).compareTo(NaturalSortKey.of(f2.getName()));
+    }
+}
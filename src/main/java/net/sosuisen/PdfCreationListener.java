@@ -0,0 +1,85 @@
+package net.sosuisen;
+
+import java.io.File;
+
+/**
+ * Receives progress from a {@link PdfCreationEngine} and tells it when to stop.
+ * <p>
+ * All methods are called on the thread that runs
+ * {@link PdfCreationEngine#create(File, String, PdfCreationListener)}.
+ */
+public interface PdfCreationListener {
+    /**
+     * A listener that ignores progress and never cancels.
+     */
+    PdfCreationListener NONE = new PdfCreationListener() {
+    };
+
+    /**
+     * Called once the image files have been listed and sorted.
+     *
+     * @param totalImages the number of pages that will be created
+     */
+    default void started(int totalImages) {
+    }
+
+    /**
+     * Called once the image files have been listed and sorted, with the
+     * metrics that the run fills in as it goes. They may be read from any
+     * thread, for example to sample throughput. Calls
+     * {@link #started(int)} by default.
+     *
+     * @param totalImages the number of pages that will be created
+     * @param metrics     the live metrics of the run
+     */
+    default void started(int totalImages, RunMetrics metrics) {
+        started(totalImages);
+    }
+
+    /**
+     * Called before the image at the given position is added as a page.
+     *
+     * @param index       the zero-based position of the image
+     * @param totalImages the number of pages that will be created
+     * @param imageFile   the image file
+     */
+    default void imageStarted(int index, int totalImages, File imageFile) {
+    }
+
+    /**
+     * Called after the image at the given position has been added as a page.
+     *
+     * @param index       the zero-based position of the image
+     * @param totalImages the number of pages that will be created
+     * @param source      whether the image was encoded, taken from the
+     *                    {@link ImageCache}, or shared with an earlier page
+     */
+    default void imageCompleted(int index, int totalImages, ImageSource source) {
+    }
+
+    /**
+     * Called after the last page has been added, before the PDF is written.
+     */
+    default void saving() {
+    }
+
+    /**
+     * Called after the PDF has been written.
+     *
+     * @param metrics the timings and counters of the run
+     */
+    default void finished(RunMetrics metrics) {
+    }
+
+    /**
+     * Polled between pages and, while the PDF is being written, between
+     * buffers, possibly from a saving thread. Returning true stops the
+     * engine, which then discards the document and deletes the partly written
+     * file.
+     *
+     * @return true if the creation should be cancelled
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+}
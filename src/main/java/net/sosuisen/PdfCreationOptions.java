@@ -0,0 +1,551 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.util.Objects;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Settings that control how a PDF is created.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * var options = PdfCreationOptions.builder()
+ *         .lowMemory(true)
+ *         .maxMainMemory(32 * 1024 * 1024)
+ *         .build();
+ * </pre>
+ */
+public class PdfCreationOptions {
+    /**
+     * Default heap ceiling for the output document's buffers in low-memory mode.
+     */
+    public static final long DEFAULT_MAX_MAIN_MEMORY = 64L * 1024 * 1024;
+
+    private final int workers;
+    private final long memoryBudget;
+    private final boolean lowMemory;
+    private final long maxMainMemory;
+    private final File scratchDirectory;
+    private final ImageCache imageCache;
+    private final boolean deduplicate;
+    private final int nearDuplicateDistance;
+    private final OutputProfile profile;
+    private final boolean recursive;
+    private final boolean detectContent;
+    private final boolean report;
+    private final long volumeMaxBytes;
+    private final int volumePages;
+    private final SyncPolicy syncPolicy;
+    private final boolean resumable;
+    private final boolean append;
+
+    private PdfCreationOptions(Builder builder) {
+        this.workers = builder.workers;
+        this.memoryBudget = builder.memoryBudget;
+        this.lowMemory = builder.lowMemory;
+        this.maxMainMemory = builder.maxMainMemory;
+        this.scratchDirectory = builder.scratchDirectory;
+        this.imageCache = builder.imageCache;
+        this.deduplicate = builder.deduplicate;
+        this.nearDuplicateDistance = builder.nearDuplicateDistance;
+        this.profile = builder.profile;
+        this.recursive = builder.recursive;
+        this.detectContent = builder.detectContent;
+        this.report = builder.report;
+        this.volumeMaxBytes = builder.volumeMaxBytes;
+        this.volumePages = builder.volumePages;
+        this.syncPolicy = builder.syncPolicy;
+        this.resumable = builder.resumable;
+        this.append = builder.append;
+    }
+
+    /**
+     * @return a builder initialized with the default settings
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the default settings
+     */
+    public static PdfCreationOptions defaults() {
+        return builder().build();
+    }
+
+    /**
+     * @return a builder initialized with these settings, for deriving
+     *         settings that differ in a few values
+     */
+    public Builder toBuilder() {
+        var builder = new Builder();
+        builder.workers = workers;
+        builder.memoryBudget = memoryBudget;
+        builder.lowMemory = lowMemory;
+        builder.maxMainMemory = maxMainMemory;
+        builder.scratchDirectory = scratchDirectory;
+        builder.imageCache = imageCache;
+        builder.deduplicate = deduplicate;
+        builder.nearDuplicateDistance = nearDuplicateDistance;
+        builder.profile = profile;
+        builder.recursive = recursive;
+        builder.detectContent = detectContent;
+        builder.report = report;
+        builder.volumeMaxBytes = volumeMaxBytes;
+        builder.volumePages = volumePages;
+        builder.syncPolicy = syncPolicy;
+        builder.resumable = resumable;
+        builder.append = append;
+        return builder;
+    }
+
+    /**
+     * @return the number of decode/encode worker threads
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return the read-ahead budget of the image pipeline in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return whether the output document spills its buffers to a scratch file
+     */
+    public boolean isLowMemory() {
+        return lowMemory;
+    }
+
+    /**
+     * @return the heap ceiling for the output document's buffers in low-memory
+     *         mode; 0 means the buffers go to the scratch file only
+     */
+    public long getMaxMainMemory() {
+        return maxMainMemory;
+    }
+
+    /**
+     * @return the directory for scratch files, or null for the system default
+     */
+    public File getScratchDirectory() {
+        return scratchDirectory;
+    }
+
+    /**
+     * @return the cache of converted images, or null if caching is disabled
+     */
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * @return whether pages with byte-identical image files share one XObject
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * @return the largest {@link PerceptualHash} distance at which two images of
+     *         the same size share one XObject, or -1 if near-duplicates are not
+     *         detected
+     */
+    public int getNearDuplicateDistance() {
+        return nearDuplicateDistance;
+    }
+
+    /**
+     * @return the resolution and compression of the embedded images
+     */
+    public OutputProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return whether images in subfolders are included
+     */
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * @return whether files without an image extension are checked for image
+     *         content
+     */
+    public boolean isDetectContent() {
+        return detectContent;
+    }
+
+    /**
+     * @return whether a {@link RunMetrics} report is written next to the PDF
+     */
+    public boolean isReport() {
+        return report;
+    }
+
+    /**
+     * @return the largest size of one output file in bytes, or 0 if the size
+     *         is not limited
+     */
+    public long getVolumeMaxBytes() {
+        return volumeMaxBytes;
+    }
+
+    /**
+     * @return the number of pages per output file, or 0 if not limited
+     */
+    public int getVolumePages() {
+        return volumePages;
+    }
+
+    /**
+     * @return how far written PDFs are forced to the storage device
+     */
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * @return whether the completed pages are journaled so that an
+     *         interrupted run can be resumed
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * Whether new images are added to the end of an existing PDF. PDFBox
+     * writes an incremental update into a buffer on the heap before it goes
+     * to the file, so while the update is saved the heap holds all the new
+     * pages with their encoded images at once, even in
+     * {@link #isLowMemory() low-memory} mode. Runs that add more images than
+     * fit into the heap should write the PDF again instead.
+     *
+     * @return whether new images are added to the end of an existing PDF
+     *         instead of writing it again
+     */
+    public boolean isAppend() {
+        return append;
+    }
+
+    /**
+     * @return whether the output is split into numbered volumes
+     */
+    public boolean isSplit() {
+        return volumeMaxBytes > 0 || volumePages > 0;
+    }
+
+    /**
+     * Creates an empty output document whose buffers follow these settings.
+     * <p>
+     * In low-memory mode every embedded image stream is kept in the scratch
+     * file (after at most {@link #getMaxMainMemory()} bytes of heap), so heap
+     * use no longer grows with the size of the output.
+     *
+     * @return a new document
+     */
+    public PDDocument newDocument() {
+        return new PDDocument(memoryUsageSetting());
+    }
+
+    /**
+     * @return the PDFBox memory setting for the output document
+     */
+    public MemoryUsageSetting memoryUsageSetting() {
+        MemoryUsageSetting setting;
+        if (!lowMemory) {
+            setting = MemoryUsageSetting.setupMainMemoryOnly();
+        } else if (maxMainMemory <= 0) {
+            setting = MemoryUsageSetting.setupTempFileOnly();
+        } else {
+            setting = MemoryUsageSetting.setupMixed(maxMainMemory);
+        }
+        if (scratchDirectory != null) {
+            setting.setTempDir(scratchDirectory);
+        }
+        return setting;
+    }
+
+    /**
+     * Builder for {@link PdfCreationOptions}.
+     */
+    public static class Builder {
+        private int workers = ImagePipeline.DEFAULT_WORKERS;
+        private long memoryBudget = ImagePipeline.DEFAULT_MEMORY_BUDGET;
+        private boolean lowMemory;
+        private long maxMainMemory = DEFAULT_MAX_MAIN_MEMORY;
+        private File scratchDirectory;
+        private ImageCache imageCache;
+        private boolean deduplicate = true;
+        private int nearDuplicateDistance = -1;
+        private OutputProfile profile = OutputProfile.ORIGINAL;
+        private boolean recursive;
+        private boolean detectContent = true;
+        private boolean report = true;
+        private long volumeMaxBytes;
+        private int volumePages;
+        private SyncPolicy syncPolicy = SyncPolicy.FILE;
+        private boolean resumable;
+        private boolean append;
+
+        private Builder() {
+        }
+
+        /**
+         * Specifies the number of decode/encode worker threads.
+         *
+         * @param workers the number of threads
+         * @return this builder
+         */
+        public Builder workers(int workers) {
+            if (workers <= 0) {
+                throw new IllegalArgumentException("workers must be positive: " + workers);
+            }
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * Specifies the read-ahead budget of the image pipeline.
+         *
+         * @param bytes the budget in bytes
+         * @return this builder
+         */
+        public Builder memoryBudget(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("memoryBudget must be positive: " + bytes);
+            }
+            this.memoryBudget = bytes;
+            return this;
+        }
+
+        /**
+         * Specifies whether the output document spills to a scratch file.
+         *
+         * @param lowMemory true to enable low-memory mode
+         * @return this builder
+         */
+        public Builder lowMemory(boolean lowMemory) {
+            this.lowMemory = lowMemory;
+            return this;
+        }
+
+        /**
+         * Specifies the heap ceiling for the output document in low-memory mode.
+         * Use 0 to keep everything in the scratch file.
+         *
+         * @param bytes the ceiling in bytes
+         * @return this builder
+         */
+        public Builder maxMainMemory(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("maxMainMemory must not be negative: " + bytes);
+            }
+            this.maxMainMemory = bytes;
+            return this;
+        }
+
+        /**
+         * Specifies the directory for scratch files.
+         *
+         * @param directory the directory, or null for the system default
+         * @return this builder
+         */
+        public Builder scratchDirectory(File directory) {
+            this.scratchDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Specifies the cache of converted images. Images found in the cache
+         * are copied into the document without being decoded or encoded.
+         *
+         * @param imageCache the cache, or null to disable caching
+         * @return this builder
+         */
+        public Builder imageCache(ImageCache imageCache) {
+            this.imageCache = imageCache;
+            return this;
+        }
+
+        /**
+         * Specifies whether files with identical content are embedded once and
+         * drawn on every page that uses them. Enabled by default.
+         *
+         * @param deduplicate true to detect duplicates
+         * @return this builder
+         */
+        public Builder deduplicate(boolean deduplicate) {
+            this.deduplicate = deduplicate;
+            return this;
+        }
+
+        /**
+         * Also treats images as duplicates when they have the same pixel size
+         * and their {@link PerceptualHash perceptual hashes} differ in at most
+         * the given number of bits. The later page then shows the earlier
+         * image, so this is lossy and disabled by default. Small values such as
+         * 2 to 4 only match re-encodes of the same picture; flat or plain
+         * gradient images carry little detail and may still match each other.
+         *
+         * @param bits the largest distance (0 to 64), or -1 to disable
+         * @return this builder
+         */
+        public Builder nearDuplicateDistance(int bits) {
+            if (bits < -1 || bits > 64) {
+                throw new IllegalArgumentException("nearDuplicateDistance must be -1 to 64: " + bits);
+            }
+            this.nearDuplicateDistance = bits;
+            return this;
+        }
+
+        /**
+         * Specifies the resolution and compression of the embedded images.
+         * The default, {@link OutputProfile#ORIGINAL}, embeds them unchanged.
+         *
+         * @param profile the output profile
+         * @return this builder
+         */
+        public Builder profile(OutputProfile profile) {
+            this.profile = Objects.requireNonNull(profile);
+            return this;
+        }
+
+        /**
+         * Specifies whether images in subfolders are included. Each folder's
+         * own images come before those of its subfolders.
+         *
+         * @param recursive true to scan subfolders
+         * @return this builder
+         */
+        public Builder recursive(boolean recursive) {
+            this.recursive = recursive;
+            return this;
+        }
+
+        /**
+         * Specifies whether files without an image extension are opened to
+         * check whether they contain an image. Enabled by default.
+         *
+         * @param detectContent false to go by extension only
+         * @return this builder
+         */
+        public Builder detectContent(boolean detectContent) {
+            this.detectContent = detectContent;
+            return this;
+        }
+
+        /**
+         * Specifies whether the timings and counters of each run are written
+         * next to the PDF as {@code <title>.report.json}. Enabled by default.
+         *
+         * @param report false to skip the report
+         * @return this builder
+         */
+        public Builder report(boolean report) {
+            this.report = report;
+            return this;
+        }
+
+        /**
+         * Splits the output into volumes named {@code <title>_001.pdf},
+         * {@code <title>_002.pdf} and so on, each at most the given size. A
+         * single image larger than that still gets a volume of its own.
+         * Volumes are saved in parallel while the next one is assembled.
+         *
+         * @param bytes the largest size of one volume, or 0 for no limit
+         * @return this builder
+         */
+        public Builder volumeMaxBytes(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("volumeMaxBytes must not be negative: " + bytes);
+            }
+            this.volumeMaxBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Splits the output into volumes of at most the given number of
+         * pages. Can be combined with {@link #volumeMaxBytes(long)}, in which
+         * case a volume ends at whichever limit it reaches first.
+         *
+         * @param pages the pages per volume, or 0 for no limit
+         * @return this builder
+         */
+        public Builder volumePages(int pages) {
+            if (pages < 0) {
+                throw new IllegalArgumentException("volumePages must not be negative: " + pages);
+            }
+            this.volumePages = pages;
+            return this;
+        }
+
+        /**
+         * Specifies how far a written PDF is forced to the storage device
+         * before it replaces the previous file of the same name. The default,
+         * {@link SyncPolicy#FILE}, makes sure the name never refers to a
+         * partly written PDF.
+         *
+         * @param syncPolicy the policy
+         * @return this builder
+         */
+        public Builder syncPolicy(SyncPolicy syncPolicy) {
+            this.syncPolicy = Objects.requireNonNull(syncPolicy);
+            return this;
+        }
+
+        /**
+         * Specifies whether each completed page is recorded in a
+         * {@link ResumeJournal} next to the PDF. A run that is cancelled or
+         * dies then keeps its journal, and the next run with the same folder,
+         * title and image settings takes the recorded pages from it instead
+         * of preparing them again. The journal holds a copy of the encoded
+         * images that are not in the {@link #imageCache image cache}, so
+         * without a cache it takes about as much space as the PDF until the
+         * run completes and deletes it.
+         *
+         * @param resumable true to journal the pages
+         * @return this builder
+         */
+        public Builder resumable(boolean resumable) {
+            this.resumable = resumable;
+            return this;
+        }
+
+        /**
+         * Specifies whether a PDF that already exists is kept and only the
+         * images it does not contain yet are added to its end, as an
+         * incremental update that leaves the existing bytes untouched. Each
+         * page records the image it was made from, which is how the images
+         * are told apart. Without an existing PDF the run writes a new one.
+         * Cannot be combined with volumes. Saving the update takes about as
+         * much heap as the added images; see {@link PdfCreationOptions#isAppend()}.
+         *
+         * @param append true to add to an existing PDF
+         * @return this builder
+         */
+        public Builder append(boolean append) {
+            this.append = append;
+            return this;
+        }
+
+        /**
+         * @return the options
+         * @throws IllegalArgumentException if append is combined with a
+         *                                  volume limit
+         */
+        public PdfCreationOptions build() {
+            if (append && (volumeMaxBytes > 0 || volumePages > 0)) {
+                throw new IllegalArgumentException("append cannot be combined with volumes");
+            }
+            return new PdfCreationOptions(this);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * A queued PDF creation, run by a {@link JobScheduler}.
+ * <p>
+ * As a {@link Task}, a job publishes its progress, message and state as
+ * JavaFX properties that can be bound directly to controls, and is cancelled
+ * with {@link #cancel()}. Progress is sampled by a {@link ProgressReporter},
+ * so the properties change at most once per frame however fast pages are
+ * added.
+ */
+public class PdfJob extends Task<File> {
+    private final File folder;
+    private final String pdfTitle;
+    private final PdfCreationEngine engine;
+    private final Semaphore jobPermits;
+
+    PdfJob(File folder, String pdfTitle, PdfCreationEngine engine, Semaphore jobPermits) {
+        this.folder = folder;
+        this.pdfTitle = pdfTitle;
+        this.engine = engine;
+        this.jobPermits = jobPermits;
+        updateTitle(pdfTitle);
+        updateMessage("待機中");
+    }
+
+    /**
+     * @return the folder that contains the images
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return the PDF title
+     */
+    public String getPdfTitle() {
+        return pdfTitle;
+    }
+
+    /**
+     * Shows a snapshot in the progress and message properties with a single
+     * hop to the JavaFX Application Thread.
+     */
+    private void publish(ProgressSnapshot snapshot) {
+        Platform.runLater(() -> {
+            updateProgress(snapshot.progress(), 1);
+            updateMessage(snapshot.message());
+        });
+    }
+
+    @Override
+    protected File call() throws Exception {
+        // Wait for a free slot; the job stays in the queue until then.
+        jobPermits.acquire();
+        try {
+            try (var reporter = new ProgressReporter(ProgressReporter.DEFAULT_FRAMES_PER_SECOND, this::publish) {
+                @Override
+                public boolean isCancelled() {
+                    return PdfJob.this.isCancelled();
+                }
+            }) {
+                return engine.create(folder, pdfTitle, reporter);
+            }
+        } catch (CancellationException e) {
+            // The task is already marked as cancelled.
+            return null;
+        } finally {
+            jobPermits.release();
+        }
+    }
+}
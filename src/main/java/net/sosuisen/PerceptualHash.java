@@ -0,0 +1,97 @@
+package net.sosuisen;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * 64-bit difference hashes (dHash) used to find images that look the same but
+ * are not byte-identical, such as the same scan saved twice as JPEG.
+ * <p>
+ * The image is reduced to 9x8 gray pixels and each bit records whether a
+ * pixel is brighter than its right neighbour. Similar images have hashes that
+ * differ in few bits; compare them with {@link #distance(long, long)}.
+ */
+public final class PerceptualHash {
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+    /**
+     * Images are decoded at no more than about this many pixels per side;
+     * the hash only needs a thumbnail.
+     */
+    private static final int DECODE_SIZE = 64;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Computes the hash of an image file. Large images are decoded with source
+     * subsampling, so the full raster is never held in memory.
+     *
+     * @param file the image file
+     * @return the hash
+     * @throws IOException if the file cannot be decoded
+     */
+    public static long of(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / DECODE_SIZE);
+                param.setSourceSubsampling(step, step, 0, 0);
+                return of(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @param image the decoded image
+     * @return the hash
+     */
+    public static long of(BufferedImage image) {
+        var small = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = small.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, WIDTH, HEIGHT, null);
+        } finally {
+            g.dispose();
+        }
+        var raster = small.getRaster();
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (raster.getSample(x, y, 0) > raster.getSample(x + 1, y, 0)) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param hash1 a hash
+     * @param hash2 another hash
+     * @return the number of differing bits, from 0 (identical) to 64
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+}
@@ -0,0 +1,295 @@
+package net.sosuisen;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * An image that has been decoded and encoded on a worker thread but not yet
+ * placed in the output document.
+ * <p>
+ * PDFBox documents are not thread-safe, so each image is built inside its own
+ * scratch {@link PDDocument}. The assembler then copies the already-filtered
+ * streams into the output document with {@link #importInto(PDDocument)}, which
+ * is a plain byte copy and never decodes or re-encodes the image.
+ * <p>
+ * When the pipeline finds that the file has the same content as an earlier
+ * one, it skips the work and hands over a <em>duplicate</em>: a placeholder
+ * without an image that carries only the content hash, so the assembler can
+ * reuse the XObject it already embedded.
+ */
+public class PreparedImage implements Closeable {
+    private final int index;
+    private final File file;
+    private final PDDocument scratch;
+    private final PDImageXObject image;
+    private final long encodedBytes;
+    private final MemoryBudget budget;
+    private final ImageSource source;
+    private final String contentHash;
+    private final Long perceptualHash;
+    private final PDRectangle pageSize;
+    private long reservedBytes;
+
+    PreparedImage(int index, File file, PDRectangle pageSize, PDDocument scratch, PDImageXObject image,
+            MemoryBudget budget, long reservedBytes, ImageSource source, String contentHash,
+            Long perceptualHash) {
+        this.index = index;
+        this.file = file;
+        this.pageSize = pageSize;
+        this.scratch = scratch;
+        this.image = image;
+        this.encodedBytes = encodedSize(image.getCOSObject(), new IdentityHashMap<>());
+        this.budget = budget;
+        this.reservedBytes = budget != null ? budget.shrink(reservedBytes, encodedBytes) : 0;
+        this.source = source;
+        this.contentHash = contentHash;
+        this.perceptualHash = perceptualHash;
+    }
+
+    private PreparedImage(int index, File file, PDRectangle pageSize, String contentHash) {
+        this.index = index;
+        this.file = file;
+        this.pageSize = pageSize;
+        this.scratch = null;
+        this.image = null;
+        this.encodedBytes = 0;
+        this.budget = null;
+        this.source = ImageSource.DUPLICATE;
+        this.contentHash = contentHash;
+        this.perceptualHash = null;
+    }
+
+    /**
+     * Creates a placeholder for an image whose content was already seen at an
+     * earlier position.
+     *
+     * @param index       the position of this image in the sorted input list
+     * @param file        the source image file
+     * @param pageSize    the page size, or null to use the earlier image's size
+     * @param contentHash the content hash shared with the earlier image
+     * @return the placeholder
+     */
+    static PreparedImage duplicate(int index, File file, PDRectangle pageSize, String contentHash) {
+        return new PreparedImage(index, file, pageSize, contentHash);
+    }
+
+    /**
+     * Recreates an image that an earlier run prepared and recorded in its
+     * {@link ResumeJournal}. It holds no reservation in a memory budget.
+     *
+     * @param index          the position of this image in the sorted input list
+     * @param file           the source image file
+     * @param pageSize       the page size, or null to use the image's size
+     * @param scratch        the document that holds the recreated streams
+     * @param image          the recreated image
+     * @param contentHash    the recorded content hash, or null
+     * @param perceptualHash the recorded perceptual hash, or null
+     * @return the prepared image
+     */
+    static PreparedImage resumed(int index, File file, PDRectangle pageSize, PDDocument scratch,
+            PDImageXObject image, String contentHash, Long perceptualHash) {
+        return new PreparedImage(index, file, pageSize, scratch, image, null, 0, ImageSource.RESUMED,
+                contentHash, perceptualHash);
+    }
+
+    /**
+     * @return the position of this image in the sorted input list
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the source image file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return where the image came from; a {@link ImageSource#DUPLICATE} has no
+     *         image of its own and cannot be imported
+     */
+    public ImageSource getSource() {
+        return source;
+    }
+
+    /**
+     * @return true if this is a placeholder for an earlier image with the same
+     *         content
+     */
+    public boolean isDuplicate() {
+        return image == null;
+    }
+
+    /**
+     * @return the encoded image in the scratch document, or null for a
+     *         duplicate
+     */
+    PDImageXObject getImage() {
+        return image;
+    }
+
+    /**
+     * @return the SHA-256 hash of the source file, or null if duplicate
+     *         detection is disabled
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return the {@link PerceptualHash} of the image, or null if near-duplicate
+     *         detection is disabled
+     */
+    public Long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    /**
+     * Returns the page size for this image: the pixel size of the original
+     * file in points, even if the embedded image was reduced by an
+     * {@link OutputProfile}.
+     *
+     * @return the page size, or null if it equals the size of the embedded
+     *         image
+     */
+    public PDRectangle getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the width of the image in pixels
+     */
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    /**
+     * @return the height of the image in pixels
+     */
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * @return the total size of the filtered streams held by this image
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * Copies the encoded image, including any soft mask or ICC profile, into
+     * the given document.
+     *
+     * @param document the output document
+     * @return the image XObject that belongs to the output document
+     * @throws IOException if copying the streams fails
+     */
+    public PDImageXObject importInto(PDDocument document) throws IOException {
+        if (image == null) {
+            throw new IllegalStateException("A duplicate has no image to import: " + file.getName());
+        }
+        COSStream copy = (COSStream) copy(image.getCOSObject(), document, new IdentityHashMap<>());
+        return new PDImageXObject(new PDStream(copy), null);
+    }
+
+    /**
+     * Releases the scratch document that holds the encoded streams and returns
+     * this image's reservation to the pipeline's memory budget.
+     */
+    @Override
+    public void close() throws IOException {
+        if (scratch == null) {
+            return;
+        }
+        if (budget != null) {
+            budget.release(reservedBytes);
+            reservedBytes = 0;
+        }
+        scratch.close();
+    }
+
+    private static COSBase copy(COSBase base, PDDocument document, Map<COSBase, COSBase> copied)
+            throws IOException {
+        if (base instanceof COSObject) {
+            return copy(((COSObject) base).getObject(), document, copied);
+        }
+        COSBase done = copied.get(base);
+        if (done != null) {
+            return done;
+        }
+        if (base instanceof COSStream) {
+            COSStream source = (COSStream) base;
+            COSStream target = document.getDocument().createCOSStream();
+            copied.put(base, target);
+            for (Map.Entry<COSName, COSBase> entry : source.entrySet()) {
+                target.setItem(entry.getKey(), copy(entry.getValue(), document, copied));
+            }
+            try (InputStream in = source.createRawInputStream();
+                    OutputStream out = target.createRawOutputStream()) {
+                IOUtils.copy(in, out);
+            }
+            return target;
+        }
+        if (base instanceof COSDictionary) {
+            COSDictionary target = new COSDictionary();
+            copied.put(base, target);
+            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) base).entrySet()) {
+                target.setItem(entry.getKey(), copy(entry.getValue(), document, copied));
+            }
+            return target;
+        }
+        if (base instanceof COSArray) {
+            COSArray target = new COSArray();
+            copied.put(base, target);
+            for (COSBase item : (COSArray) base) {
+                target.add(copy(item, document, copied));
+            }
+            return target;
+        }
+        // Names, numbers, strings, booleans and null carry no document state.
+        return base;
+    }
+
+    private static long encodedSize(COSBase base, Map<COSBase, Boolean> seen) {
+        if (base instanceof COSObject) {
+            return encodedSize(((COSObject) base).getObject(), seen);
+        }
+        if (base == null || seen.put(base, Boolean.TRUE) != null) {
+            return 0;
+        }
+        long size = 0;
+        if (base instanceof COSStream) {
+            size += ((COSStream) base).getLength();
+        }
+        if (base instanceof COSDictionary) {
+            for (COSBase value : ((COSDictionary) base).getValues()) {
+                size += encodedSize(value, seen);
+            }
+        } else if (base instanceof COSArray) {
+            for (COSBase item : (COSArray) base) {
+                size += encodedSize(item, seen);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,179 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A {@link PdfCreationListener} that turns per-image callbacks into at most
+ * one {@link ProgressSnapshot} per frame.
+ * <p>
+ * The callbacks only store a few fields, so a run with thousands of small
+ * images per second spends no time building messages that are never shown. A
+ * shared timer samples the run at a fixed frame rate, smooths the page and
+ * byte rates over about {@value #SMOOTHING_SECONDS} seconds to estimate the
+ * remaining time, and hands the snapshot to a sink, for example one that
+ * updates JavaFX properties or prints a line to the console. Frames without
+ * any change are skipped.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * try (var reporter = new ProgressReporter(1, snapshot -&gt; System.out.println(snapshot.message()))) {
+ *     engine.create(folder, title, reporter);
+ * }
+ * </pre>
+ */
+public class ProgressReporter implements PdfCreationListener, AutoCloseable {
+    /**
+     * Default frame rate for on-screen progress.
+     */
+    public static final double DEFAULT_FRAMES_PER_SECOND = 20;
+
+    /**
+     * Time constant of the rate smoothing, in seconds.
+     */
+    static final double SMOOTHING_SECONDS = 5;
+
+    private static final ScheduledExecutorService FRAMES = Executors.newSingleThreadScheduledExecutor(
+            runnable -> Thread.ofPlatform().name("progress-frames").daemon().unstarted(runnable));
+
+    private final Consumer<ProgressSnapshot> sink;
+    private final ScheduledFuture<?> frames;
+
+    // Written by the engine thread, read by the frame timer
+    private volatile ProgressSnapshot.Phase phase = ProgressSnapshot.Phase.SCANNING;
+    private volatile int totalImages;
+    private volatile RunMetrics metrics;
+    private volatile File currentFile;
+
+    // Owned by frame()
+    private long lastNanos;
+    private long lastCompleted;
+    private long lastBytes;
+    private double imageRate = Double.NaN;
+    private double byteRate;
+    private ProgressSnapshot last;
+
+    /**
+     * Creates a reporter and starts sampling.
+     *
+     * @param framesPerSecond how often the sink is called at most
+     * @param sink            receives the snapshots on the timer thread; it
+     *                        must return quickly
+     */
+    public ProgressReporter(double framesPerSecond, Consumer<ProgressSnapshot> sink) {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("framesPerSecond must be positive: " + framesPerSecond);
+        }
+        this.sink = sink;
+        long period = (long) (1e9 / framesPerSecond);
+        this.frames = FRAMES.scheduleAtFixedRate(this::frame, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the metrics of the run, or null before the images were listed
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void started(int totalImages, RunMetrics metrics) {
+        this.totalImages = totalImages;
+        this.metrics = metrics;
+        phase = ProgressSnapshot.Phase.PROCESSING;
+    }
+
+    @Override
+    public void imageStarted(int index, int totalImages, File imageFile) {
+        currentFile = imageFile;
+    }
+
+    @Override
+    public void saving() {
+        phase = ProgressSnapshot.Phase.SAVING;
+    }
+
+    @Override
+    public void finished(RunMetrics metrics) {
+        phase = ProgressSnapshot.Phase.DONE;
+    }
+
+    /**
+     * Stops sampling and publishes the final state if it has not been
+     * published yet.
+     */
+    @Override
+    public void close() {
+        frames.cancel(false);
+        frame();
+    }
+
+    private synchronized void frame() {
+        try {
+            ProgressSnapshot snapshot = sample(System.nanoTime());
+            if (!snapshot.equals(last)) {
+                last = snapshot;
+                sink.accept(snapshot);
+            }
+        } catch (RuntimeException e) {
+            // A failing sink must not stop the timer for other runs
+            System.err.println("Progress update failed: " + e);
+        }
+    }
+
+    private ProgressSnapshot sample(long now) {
+        ProgressSnapshot.Phase phase = this.phase;
+        RunMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return new ProgressSnapshot(phase, 0, 0, null, 0, 0, 0, 0, 0, null);
+        }
+        int total = totalImages;
+        long completed = metrics.getPageCount();
+        long bytes = metrics.getBytesIn();
+
+        if (lastNanos == 0) {
+            lastNanos = now - metrics.getElapsedNanos();
+        }
+        double seconds = (now - lastNanos) / 1e9;
+        // Until the first page is added, keep measuring from the start of the run
+        if (seconds > 0 && (completed > 0 || !Double.isNaN(imageRate))) {
+            double images = (completed - lastCompleted) / seconds;
+            double byteSpeed = (bytes - lastBytes) / seconds;
+            if (Double.isNaN(imageRate)) {
+                imageRate = images;
+                byteRate = byteSpeed;
+            } else {
+                double alpha = 1 - Math.exp(-seconds / SMOOTHING_SECONDS);
+                imageRate += alpha * (images - imageRate);
+                byteRate += alpha * (byteSpeed - byteRate);
+            }
+            lastNanos = now;
+            lastCompleted = completed;
+            lastBytes = bytes;
+        }
+
+        double imagesPerSecond = Double.isNaN(imageRate) ? 0 : imageRate;
+        Duration eta = null;
+        if (phase == ProgressSnapshot.Phase.PROCESSING && imagesPerSecond > 0) {
+            eta = Duration.ofSeconds(Math.round((total - completed) / imagesPerSecond));
+        }
+        File file = currentFile;
+        return new ProgressSnapshot(phase, (int) completed, total, file != null ? file.getName() : null,
+                metrics.getImageCount(ImageSource.CACHED), metrics.getImageCount(ImageSource.ENCODED),
+                metrics.getImageCount(ImageSource.DUPLICATE), round(imagesPerSecond), round(byteRate / 1e6), eta);
+    }
+
+    /**
+     * Rounds a rate to one decimal, as displayed, so that frames that would
+     * look the same compare equal.
+     */
+    private static double round(double rate) {
+        return Math.round(rate * 10) / 10.0;
+    }
+}
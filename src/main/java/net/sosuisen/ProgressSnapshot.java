@@ -0,0 +1,96 @@
+package net.sosuisen;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * The state of one PDF creation at a moment in time, as published by a
+ * {@link ProgressReporter} once per frame.
+ *
+ * @param phase              what the run is doing
+ * @param completed          the number of pages added so far
+ * @param total              the number of pages that will be created, 0 while
+ *                           scanning
+ * @param currentFile        the name of the image being added, or null
+ * @param cacheHits          the pages whose image came from the cache
+ * @param cacheMisses        the pages whose image was encoded
+ * @param duplicates         the pages that share an earlier page's image
+ * @param imagesPerSecond    the smoothed page rate
+ * @param megabytesPerSecond the smoothed rate at which image files are read
+ * @param eta                the estimated time until the last page is added,
+ *                           or null while there is no estimate yet
+ */
+public record ProgressSnapshot(Phase phase, int completed, int total, String currentFile, long cacheHits,
+        long cacheMisses, long duplicates, double imagesPerSecond, double megabytesPerSecond, Duration eta) {
+    /**
+     * The phases of a PDF creation.
+     */
+    public enum Phase {
+        /** Listing and sorting the image files. */
+        SCANNING,
+        /** Adding pages. */
+        PROCESSING,
+        /** Writing the PDF file. */
+        SAVING,
+        /** The PDF has been written. */
+        DONE
+    }
+
+    /**
+     * @return the fraction of pages added, or -1 while the number of pages is
+     *         not known yet
+     */
+    public double progress() {
+        return switch (phase) {
+            case SCANNING -> -1;
+            case PROCESSING -> total > 0 ? (double) completed / total : -1;
+            case SAVING, DONE -> 1;
+        };
+    }
+
+    /**
+     * @return a one-line description for the progress label or the console
+     */
+    public String message() {
+        return switch (phase) {
+            case SCANNING -> "Scanning folder...";
+            case PROCESSING -> {
+                var text = new StringBuilder("Processing image ").append(Math.min(completed + 1, total))
+                        .append(" of ").append(total);
+                if (currentFile != null) {
+                    text.append(": ").append(currentFile);
+                }
+                if (imagesPerSecond > 0) {
+                    text.append(String.format(Locale.ROOT, " (%.1f images/s, %.1f MB/s", imagesPerSecond,
+                            megabytesPerSecond));
+                    if (eta != null) {
+                        text.append(", ETA ").append(formatDuration(eta));
+                    }
+                    text.append(')');
+                }
+                yield text.append(cacheText()).toString();
+            }
+            case SAVING -> "Saving PDF..." + cacheText();
+            case DONE -> "Created " + total + " pages" + cacheText();
+        };
+    }
+
+    private String cacheText() {
+        if (cacheHits + cacheMisses + duplicates == 0) {
+            return "";
+        }
+        return " (cache " + cacheHits + " hit / " + cacheMisses + " miss"
+                + (duplicates > 0 ? ", " + duplicates + " duplicate" : "") + ")";
+    }
+
+    /**
+     * Formats a duration as m:ss, or h:mm:ss from one hour on.
+     */
+    static String formatDuration(Duration duration) {
+        long seconds = Math.max(0, duration.toSeconds());
+        if (seconds >= 3600) {
+            return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format(Locale.ROOT, "%d:%02d", seconds / 60, seconds % 60);
+    }
+}
@@ -0,0 +1,551 @@
+package net.sosuisen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Records the pages of a run as they are added, so that a run that was
+ * cancelled or died can go on where it stopped instead of preparing every
+ * image again.
+ * <p>
+ * The journal is a hidden folder {@code .<title>.resume} next to the PDF with
+ * three files:
+ * <ul>
+ * <li>{@code inputs}: the settings that affect the embedded images, the
+ * title, and the ordered input list with the size and modification time of
+ * each file;</li>
+ * <li>{@code pages}: one record per completed page, in page order, with the
+ * page size, the hashes used to find duplicates and the encoded image as
+ * serialized by {@link CosCodec}, or only a reference to it when the
+ * {@link ImageCache} has an entry for the image; and</li>
+ * <li>{@code checkpoint}: the number of completed pages and the length of
+ * {@code pages} at the last checkpoint.</li>
+ * </ul>
+ * Records are appended as pages are added. At most every
+ * {@link #CHECKPOINT_INTERVAL_NANOS}, and when the run stops, the records are
+ * forced to the device and the checkpoint is replaced atomically, so a crash
+ * loses no more than the pages added since then.
+ * <p>
+ * When a run starts, a completed page is kept if the input at its position
+ * is the same file with the same size and modification time as before; the
+ * pages from the first one that differs onwards are dropped and prepared
+ * again, and so are the pages from the first one whose cache entry was
+ * evicted. An entry evicted later, before its page is replayed, cuts the
+ * journal back to that page, which is then prepared again with the rest.
+ * The kept pages are {@link #replay replayed} into the new document
+ * as they are, without decoding or encoding. A run that completes deletes its
+ * journal.
+ * <p>
+ * A run holds a lock on {@code pages} while its journal is open, so that two
+ * runs for the same folder and title at once do not write the same files;
+ * the later one keeps no journal. Used by the assembler thread only.
+ */
+final class ResumeJournal implements AutoCloseable {
+    /**
+     * Shortest time between two checkpoints, in nanoseconds.
+     */
+    static final long CHECKPOINT_INTERVAL_NANOS = 2_000_000_000L;
+
+    private static final int MAGIC = 0x50444a4e; // "PDJN"
+    private static final int VERSION = 2;
+    private static final String INPUTS = "inputs";
+    private static final String PAGES = "pages";
+    private static final String CHECKPOINT = "checkpoint";
+
+    // What a record holds after its hashes and page size
+    private static final byte NO_IMAGE = 0;
+    private static final byte ENCODED = 1;
+    private static final byte IN_CACHE = 2;
+
+    /**
+     * Records larger than this are replayed into a scratch file rather than
+     * onto the heap.
+     */
+    private static final long LARGE_RECORD = 16L * 1024 * 1024;
+
+    private final Path directory;
+    private final FileChannel pages;
+    private final DataOutputStream out;
+    private final File scratchDirectory;
+    private final ImageCache cache;
+    private final String variant;
+    private int completedCount;
+    private int recordCount;
+    private long length;
+    private long checkpointNanos = System.nanoTime();
+    private DataInputStream replayIn;
+    private long replayOffset;
+    private boolean deleted;
+
+    private ResumeJournal(Path directory, FileChannel pages, int completedCount, long length,
+            PdfCreationOptions options) {
+        this.directory = directory;
+        this.pages = pages;
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(pages), 64 * 1024));
+        this.scratchDirectory = options.getScratchDirectory();
+        this.cache = options.getImageCache();
+        this.variant = variant(options);
+        this.completedCount = completedCount;
+        this.recordCount = completedCount;
+        this.length = length;
+    }
+
+    /**
+     * Opens the journal of a run, creating it if there is none, and keeps the
+     * pages that are still valid for the given input list.
+     *
+     * @param folder     the folder the PDF is written to
+     * @param pdfTitle   the PDF title, with or without the .pdf extension
+     * @param imageFiles the images of this run in page order
+     * @param options    the creation settings
+     * @return the journal, or null if another run for the same folder and
+     *         title has it open
+     * @throws IOException if the journal cannot be read or written
+     */
+    static ResumeJournal open(File folder, String pdfTitle, List<File> imageFiles, PdfCreationOptions options)
+            throws IOException {
+        Path directory = directory(folder, pdfTitle);
+        Files.createDirectories(directory);
+        FileChannel pages = FileChannel.open(directory.resolve(PAGES), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // Released when the channel is closed
+            FileLock lock;
+            try {
+                lock = pages.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Held by another run in this process
+                lock = null;
+            }
+            if (lock == null) {
+                pages.close();
+                System.err.println("Another run is using the resume journal of " + pdfTitle
+                        + "; this run keeps none.");
+                return null;
+            }
+
+            String settings = settingsKey(options);
+            List<Input> previous = readInputs(directory.resolve(INPUTS), settings, pdfTitle);
+            long[] checkpoint = readCheckpoint(directory.resolve(CHECKPOINT));
+            ImageCache cache = options.getImageCache();
+            String variant = variant(options);
+
+            int limit = (int) Math.min(Math.min(checkpoint[0], previous.size()), imageFiles.size());
+            int matching = 0;
+            while (matching < limit && previous.get(matching).matches(imageFiles.get(matching))) {
+                matching++;
+            }
+
+            // Walk the records of the unchanged inputs; anything after them is dropped.
+            // The stream is not closed, which would close the channel.
+            var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(pages), 64 * 1024));
+            int completed = 0;
+            long length = 0;
+            try {
+                while (completed < matching) {
+                    long recordLength = in.readLong();
+                    if (in.readInt() != completed || recordLength < Integer.BYTES + 2
+                            || length + Long.BYTES + recordLength > checkpoint[1]) {
+                        break;
+                    }
+                    long read = Integer.BYTES + 1;
+                    if (in.readByte() == IN_CACHE) {
+                        // The hash follows; a reference is only written with one
+                        if (!in.readBoolean()) {
+                            break;
+                        }
+                        String contentHash = in.readUTF();
+                        read += 1 + 2 + contentHash.length();
+                        if (cache == null || !cache.contains(contentHash, variant)) {
+                            break;
+                        }
+                    }
+                    in.skipNBytes(recordLength - read);
+                    length += Long.BYTES + recordLength;
+                    completed++;
+                }
+            } catch (EOFException e) {
+                // The last record is incomplete.
+            }
+            pages.truncate(length);
+            pages.position(length);
+
+            var journal = new ResumeJournal(directory, pages, completed, length, options);
+            journal.writeCheckpoint();
+            writeInputs(directory.resolve(INPUTS), settings, pdfTitle, imageFiles);
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            pages.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param folder   the folder the PDF is written to
+     * @param pdfTitle the PDF title, with or without the .pdf extension
+     * @return the folder of the journal
+     */
+    static Path directory(File folder, String pdfTitle) {
+        return folder.toPath().resolve("." + PdfCreationEngine.baseName(pdfTitle) + ".resume");
+    }
+
+    /**
+     * @return the number of pages completed by earlier runs, which are
+     *         {@link #replay replayed} before any image is prepared; fewer
+     *         once a replay has cut the journal back
+     */
+    int getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * Recreates the next page completed by an earlier run. Pages are replayed
+     * in order, from 0 to {@link #getCompletedCount()} - 1.
+     * <p>
+     * If the image of the page was recorded as a reference to an image cache
+     * entry that has been evicted since, the journal is cut back to this
+     * page and null is returned; the caller prepares this page and the rest.
+     * If a record cannot be read, the journal is deleted, so that the next
+     * run starts over instead of failing in the same place.
+     *
+     * @param index the position of the page
+     * @param file  the source image file at that position
+     * @return the prepared image, which the caller closes, or null if the
+     *         page must be prepared again
+     * @throws IOException if the record cannot be read
+     */
+    PreparedImage replay(int index, File file) throws IOException {
+        if (index >= completedCount) {
+            throw new IllegalStateException("Page " + index + " was not completed");
+        }
+        try {
+            if (replayIn == null) {
+                replayIn = new DataInputStream(new BufferedInputStream(
+                        Files.newInputStream(directory.resolve(PAGES)), 64 * 1024));
+            }
+            long recordStart = replayOffset;
+            long recordLength = replayIn.readLong();
+            replayOffset += Long.BYTES + recordLength;
+            if (replayIn.readInt() != index) {
+                throw new IOException("Resume journal is out of order at page " + index);
+            }
+            byte kind = replayIn.readByte();
+            String contentHash = replayIn.readBoolean() ? replayIn.readUTF() : null;
+            Long perceptualHash = replayIn.readBoolean() ? replayIn.readLong() : null;
+            PDRectangle pageSize = replayIn.readBoolean()
+                    ? new PDRectangle(replayIn.readFloat(), replayIn.readFloat())
+                    : null;
+            if (kind == NO_IMAGE) {
+                return PreparedImage.duplicate(index, file, pageSize, contentHash);
+            }
+            byte[] entry = null;
+            if (kind == IN_CACHE) {
+                entry = cache != null ? cache.find(contentHash, variant) : null;
+                if (entry == null) {
+                    // Evicted by another run since the journal was opened
+                    cutBack(index, recordStart);
+                    return null;
+                }
+            }
+            PDDocument scratch = recordLength > LARGE_RECORD ? new PDDocument(largeRecordSetting()) : new PDDocument();
+            try {
+                COSStream stream = entry != null ? CosCodec.decode(entry, scratch) : CosCodec.decode(replayIn, scratch);
+                var image = new PDImageXObject(new PDStream(stream), null);
+                return PreparedImage.resumed(index, file, pageSize, scratch, image, contentHash, perceptualHash);
+            } catch (IOException | RuntimeException e) {
+                scratch.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            delete();
+            throw new IOException("Could not resume from the journal; the next run starts over", e);
+        } finally {
+            if (index == completedCount - 1 && replayIn != null) {
+                replayIn.close();
+                replayIn = null;
+            }
+        }
+    }
+
+    /**
+     * Appends the record of a page that this run added, and makes a
+     * checkpoint if the last one is older than
+     * {@link #CHECKPOINT_INTERVAL_NANOS}. An image that the image cache holds
+     * is recorded by its content hash only.
+     *
+     * @param prepared the image of the page, before it is closed
+     * @throws IOException if the record cannot be written
+     */
+    void record(PreparedImage prepared) throws IOException {
+        if (prepared.getIndex() != recordCount) {
+            throw new IllegalStateException("Expected page " + recordCount + ", got " + prepared.getIndex());
+        }
+        // Channel writes go straight to the file, so the position is exact once out is flushed
+        long start = length;
+        PDImageXObject image = prepared.getImage();
+        String contentHash = prepared.getContentHash();
+        byte kind = image == null ? NO_IMAGE
+                : contentHash != null && cache != null && cache.contains(contentHash, variant) ? IN_CACHE
+                : ENCODED;
+        out.writeLong(0);
+        out.writeInt(prepared.getIndex());
+        out.writeByte(kind);
+        out.writeBoolean(prepared.getContentHash() != null);
+        if (prepared.getContentHash() != null) {
+            out.writeUTF(prepared.getContentHash());
+        }
+        out.writeBoolean(prepared.getPerceptualHash() != null);
+        if (prepared.getPerceptualHash() != null) {
+            out.writeLong(prepared.getPerceptualHash());
+        }
+        PDRectangle pageSize = prepared.getPageSize();
+        out.writeBoolean(pageSize != null);
+        if (pageSize != null) {
+            out.writeFloat(pageSize.getWidth());
+            out.writeFloat(pageSize.getHeight());
+        }
+        if (kind == ENCODED) {
+            CosCodec.encode(image.getCOSObject(), out);
+        }
+        out.flush();
+        long end = pages.position();
+        pages.write(ByteBuffer.allocate(Long.BYTES).putLong(0, end - start - Long.BYTES), start);
+        length = end;
+        recordCount++;
+
+        if (System.nanoTime() - checkpointNanos >= CHECKPOINT_INTERVAL_NANOS) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Drops the record of a page and all after it, and makes a checkpoint,
+     * so that the page is recorded again when it is prepared.
+     */
+    private void cutBack(int index, long recordStart) throws IOException {
+        replayIn.close();
+        replayIn = null;
+        pages.truncate(recordStart);
+        pages.position(recordStart);
+        length = recordStart;
+        completedCount = index;
+        recordCount = index;
+        checkpoint();
+    }
+
+    /**
+     * Forces the records to the device and replaces the checkpoint with the
+     * number of pages recorded so far.
+     *
+     * @throws IOException if forcing or writing fails
+     */
+    void checkpoint() throws IOException {
+        pages.force(false);
+        writeCheckpoint();
+        checkpointNanos = System.nanoTime();
+    }
+
+    /**
+     * Closes and deletes the journal. Called once the PDF is complete.
+     */
+    void delete() {
+        if (deleted) {
+            return;
+        }
+        deleted = true;
+        try {
+            closeFiles();
+        } catch (IOException ignore) {
+            // The files are deleted anyway.
+        }
+        for (String name : new String[] {INPUTS, PAGES, CHECKPOINT}) {
+            try {
+                Files.deleteIfExists(directory.resolve(name));
+            } catch (IOException e) {
+                System.err.println("Could not delete " + directory.resolve(name) + ": " + e.getMessage());
+            }
+        }
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            System.err.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes a final checkpoint and closes the journal, keeping it for the
+     * next run, unless it was deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (deleted) {
+            return;
+        }
+        try {
+            checkpoint();
+        } finally {
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            if (replayIn != null) {
+                replayIn.close();
+                replayIn = null;
+            }
+        } finally {
+            // Closing out would flush a partly written record; the channel is closed directly.
+            pages.close();
+        }
+    }
+
+    private MemoryUsageSetting largeRecordSetting() {
+        MemoryUsageSetting setting = MemoryUsageSetting.setupTempFileOnly();
+        if (scratchDirectory != null) {
+            setting.setTempDir(scratchDirectory);
+        }
+        return setting;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        Path target = directory.resolve(CHECKPOINT);
+        Path temp = directory.resolve(CHECKPOINT + ".tmp");
+        var data = ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES)
+                .putInt(MAGIC).putInt(recordCount).putLong(length).flip();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return the number of completed pages and the length of the records
+     *         at the last checkpoint, both 0 if there is none
+     */
+    private static long[] readCheckpoint(Path file) {
+        try (var in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                return new long[2];
+            }
+            return new long[] {in.readInt(), in.readLong()};
+        } catch (IOException e) {
+            return new long[2];
+        }
+    }
+
+    /**
+     * @return the input list of the earlier run, or an empty list if there is
+     *         none or it was made with other settings or another title
+     */
+    private static List<Input> readInputs(Path file, String settings, String pdfTitle) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(settings)
+                    || !in.readUTF().equals(pdfTitle)) {
+                return List.of();
+            }
+            int count = in.readInt();
+            List<Input> inputs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                inputs.add(new Input(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return inputs;
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    private static void writeInputs(Path target, String settings, String pdfTitle, List<File> imageFiles)
+            throws IOException {
+        Path temp = target.resolveSibling(INPUTS + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(settings);
+            out.writeUTF(pdfTitle);
+            out.writeInt(imageFiles.size());
+            for (File file : imageFiles) {
+                BasicFileAttributes attrs = attributes(file);
+                out.writeUTF(file.getAbsolutePath());
+                out.writeLong(attrs != null ? attrs.size() : -1);
+                out.writeLong(attrs != null ? attrs.lastModifiedTime().toMillis() : -1);
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static BasicFileAttributes attributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a string that changes whenever the settings would embed an
+     *         image differently or find other duplicates
+     */
+    private static String settingsKey(PdfCreationOptions options) {
+        return variant(options) + "/d" + options.isDeduplicate()
+                + "/n" + options.getNearDuplicateDistance();
+    }
+
+    /**
+     * @return the variant of the image cache entries for these settings, as
+     *         used by the {@link ImagePipeline}
+     */
+    private static String variant(PdfCreationOptions options) {
+        return ImageEncoder.VARIANT + options.getProfile().cacheKey();
+    }
+
+    /**
+     * One entry of the input list.
+     */
+    private record Input(String path, long size, long modified) {
+        boolean matches(File file) {
+            if (!path.equals(file.getAbsolutePath())) {
+                return false;
+            }
+            BasicFileAttributes attrs = attributes(file);
+            return attrs != null && attrs.size() == size && attrs.lastModifiedTime().toMillis() == modified;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package net.sosuisen;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, histograms and stage timings of one PDF creation.
+ * <p>
+ * Every stage is measured with a {@link Span}, which also emits a
+ * {@link FlightEvents.StageEvent} when Flight Recorder is running. Stages that
+ * run on several workers at once (read, decode, encode) add up their time, so
+ * their totals can exceed the wall-clock time of the run.
+ * <p>
+ * At the end of a run the engine writes {@link #toJson()} next to the PDF as
+ * {@code <title>.report.json}, one report for all volumes of a split run.
+ * Instances are thread-safe.
+ */
+public class RunMetrics {
+    /**
+     * The stages of a PDF creation.
+     */
+    public enum Stage {
+        /** Listing the folder and probing file contents. */
+        SCAN,
+        /** Putting the files in natural order. */
+        SORT,
+        /** Reading image files and cache entries. */
+        READ,
+        /** Decoding images to pixels, for images that cannot be copied as they are. */
+        DECODE,
+        /** Building image streams, including JPEG and PNG pass-through. */
+        ENCODE,
+        /** Copying images into the document and adding pages. */
+        ASSEMBLE,
+        /** Writing the PDF file. */
+        SAVE
+    }
+
+    private final Instant startTime = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final long jvmUptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+    private final Map<Stage, LongAdder> stageNanos = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> stageCounts = new EnumMap<>(Stage.class);
+    private final Map<ImageSource, LongAdder> images = new EnumMap<>(ImageSource.class);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder pixels = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAdder outputWriteNanos = new LongAdder();
+    private final LongAdder outputSyncNanos = new LongAdder();
+    private final LatencyHistogram imageLatency = new LatencyHistogram();
+    private volatile long firstPageNanos;
+    private volatile long endNanos;
+    private volatile List<File> pdfFiles = List.of();
+    private volatile long pdfBytes;
+
+    public RunMetrics() {
+        for (Stage stage : Stage.values()) {
+            stageNanos.put(stage, new LongAdder());
+            stageCounts.put(stage, new LongAdder());
+        }
+        for (ImageSource source : ImageSource.values()) {
+            images.put(source, new LongAdder());
+        }
+    }
+
+    /**
+     * Starts timing a stage. Close the span with {@link Span#end(long)} when
+     * the stage is done.
+     *
+     * @param stage    the stage
+     * @param fileName the name of the file the stage works on, or null for
+     *                 the whole run
+     * @return the running span
+     */
+    public Span start(Stage stage, String fileName) {
+        return new Span(this, stage, fileName);
+    }
+
+    /**
+     * Starts timing a stage if metrics are collected.
+     *
+     * @param metrics  the metrics, or null
+     * @param stage    the stage
+     * @param fileName the name of the file the stage works on, or null
+     * @return the running span, or a span that records nothing
+     */
+    static Span start(RunMetrics metrics, Stage stage, String fileName) {
+        return metrics != null ? metrics.start(stage, fileName) : NO_SPAN;
+    }
+
+    /**
+     * Records a prepared image.
+     *
+     * @param index        the position of the image
+     * @param file         the source image
+     * @param source       where the image came from
+     * @param bytesRead    the bytes read from the source file
+     * @param encodedBytes the size of the image streams
+     * @param pixelCount   the number of source pixels, or 0 if unknown
+     * @param startNanos   the {@link System#nanoTime()} at which preparing started
+     */
+    void imagePrepared(int index, File file, ImageSource source, long bytesRead, long encodedBytes,
+            long pixelCount, long startNanos) {
+        imageLatency.record(System.nanoTime() - startNanos);
+        bytesIn.add(bytesRead);
+        pixels.add(pixelCount);
+
+        var event = new FlightEvents.ImageEvent();
+        if (event.shouldCommit()) {
+            event.index = index;
+            event.file = file.getName();
+            event.source = source.name();
+            event.bytesIn = bytesRead;
+            event.bytesOut = encodedBytes;
+            event.pixels = pixelCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a page added to the document.
+     *
+     * @param source       where the page's image came from
+     * @param encodedBytes the bytes copied into the document, 0 for duplicates
+     */
+    void pageAdded(ImageSource source, long encodedBytes) {
+        if (firstPageNanos == 0) {
+            // Pages are added by the assembler thread only
+            firstPageNanos = System.nanoTime() - startNanos;
+        }
+        images.get(source).increment();
+        bytesOut.add(encodedBytes);
+    }
+
+    /**
+     * Records a written output file.
+     *
+     * @param bytes      the bytes written
+     * @param writeNanos the time spent writing them
+     * @param syncNanos  the time spent forcing and renaming the file
+     */
+    void outputWritten(long bytes, long writeNanos, long syncNanos) {
+        outputBytes.add(bytes);
+        outputWriteNanos.add(writeNanos);
+        outputSyncNanos.add(syncNanos);
+    }
+
+    /**
+     * Marks the end of the run.
+     *
+     * @param pdfFiles the written PDF, or its volumes in order
+     */
+    void finished(List<File> pdfFiles) {
+        endNanos = System.nanoTime();
+        this.pdfFiles = List.copyOf(pdfFiles);
+        pdfBytes = pdfFiles.stream().mapToLong(File::length).sum();
+    }
+
+    /**
+     * @return the bytes written to output files
+     */
+    public long getOutputBytes() {
+        return outputBytes.sum();
+    }
+
+    /**
+     * @return the time spent writing output files, without forcing them to
+     *         the device, in nanoseconds; volumes written at the same time
+     *         count separately
+     */
+    public long getOutputWriteNanos() {
+        return outputWriteNanos.sum();
+    }
+
+    /**
+     * @return the time spent forcing output files to the device and renaming
+     *         them, in nanoseconds
+     */
+    public long getOutputSyncNanos() {
+        return outputSyncNanos.sum();
+    }
+
+    /**
+     * @param stage a stage
+     * @return the total time spent in the stage, in nanoseconds
+     */
+    public long getStageNanos(Stage stage) {
+        return stageNanos.get(stage).sum();
+    }
+
+    /**
+     * @param source an image source
+     * @return the number of pages whose image came from that source
+     */
+    public long getImageCount(ImageSource source) {
+        return images.get(source).sum();
+    }
+
+    /**
+     * @return the number of pages added so far
+     */
+    public long getPageCount() {
+        return images.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * @return the bytes read from source image files
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return the bytes of image streams copied into the document
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return the total size of the written PDF files, or 0 before the run
+     *         has finished
+     */
+    public long getPdfBytes() {
+        return pdfBytes;
+    }
+
+    /**
+     * @return the number of source pixels of the prepared images
+     */
+    public long getPixels() {
+        return pixels.sum();
+    }
+
+    /**
+     * @return the time each image spent on a worker, in nanoseconds
+     */
+    public LatencyHistogram getImageLatency() {
+        return imageLatency;
+    }
+
+    /**
+     * @return the wall-clock time of the run so far, or of the whole run once
+     *         it has finished, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        long end = endNanos;
+        return (end != 0 ? end : System.nanoTime()) - startNanos;
+    }
+
+    /**
+     * @return the time from the start of the run to the first page, in
+     *         nanoseconds, or 0 before the first page; in a fresh JVM this
+     *         includes loading and initializing PDFBox and ImageIO
+     */
+    public long getFirstPageNanos() {
+        return firstPageNanos;
+    }
+
+    /**
+     * @return how long the JVM had been running when the run started, in
+     *         milliseconds
+     */
+    public long getJvmUptimeMillis() {
+        return jvmUptimeMillis;
+    }
+
+    /**
+     * Writes the report as JSON.
+     *
+     * @param reportFile the file to write
+     * @throws IOException if the report cannot be written
+     */
+    public void writeReport(File reportFile) throws IOException {
+        Files.writeString(reportFile.toPath(), toJson(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the metrics as a JSON object
+     */
+    public String toJson() {
+        double seconds = getElapsedNanos() / 1e9;
+        var json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"pdfFiles\": [");
+        List<File> files = pdfFiles;
+        for (int i = 0; i < files.size(); i++) {
+            json.append(i > 0 ? ", " : "").append('"').append(escape(files.get(i).getAbsolutePath())).append('"');
+        }
+        json.append("],\n");
+        json.append("  \"startTime\": \"").append(startTime).append("\",\n");
+        json.append("  \"elapsedMillis\": ").append(millis(getElapsedNanos())).append(",\n");
+        json.append("  \"firstPageMillis\": ").append(millis(firstPageNanos)).append(",\n");
+        json.append("  \"jvmUptimeMillis\": ").append(jvmUptimeMillis).append(",\n");
+        json.append("  \"pages\": ").append(getPageCount()).append(",\n");
+        json.append("  \"images\": {");
+        for (ImageSource source : ImageSource.values()) {
+            json.append(source.ordinal() > 0 ? ", " : "").append('"').append(source.name().toLowerCase(Locale.ROOT))
+                    .append("\": ").append(getImageCount(source));
+        }
+        json.append("},\n");
+        json.append("  \"bytesIn\": ").append(getBytesIn()).append(",\n");
+        json.append("  \"bytesOut\": ").append(getBytesOut()).append(",\n");
+        json.append("  \"pdfBytes\": ").append(pdfBytes).append(",\n");
+        json.append("  \"pixels\": ").append(getPixels()).append(",\n");
+        json.append("  \"throughput\": {\"imagesPerSecond\": ").append(rate(getPageCount(), seconds))
+                .append(", \"megabytesInPerSecond\": ").append(rate(getBytesIn() / 1e6, seconds))
+                .append(", \"megapixelsPerSecond\": ").append(rate(getPixels() / 1e6, seconds)).append("},\n");
+        json.append("  \"output\": {\"bytes\": ").append(getOutputBytes())
+                .append(", \"writeMillis\": ").append(millis(getOutputWriteNanos()))
+                .append(", \"syncMillis\": ").append(millis(getOutputSyncNanos()))
+                .append(", \"megabytesPerSecond\": ")
+                .append(rate(getOutputBytes() / 1e6, (getOutputWriteNanos() + getOutputSyncNanos()) / 1e9))
+                .append("},\n");
+        json.append("  \"imageLatencyMillis\": {\"count\": ").append(imageLatency.getCount())
+                .append(", \"mean\": ").append(millis((long) imageLatency.getMean()))
+                .append(", \"p50\": ").append(millis(imageLatency.getPercentile(0.5)))
+                .append(", \"p99\": ").append(millis(imageLatency.getPercentile(0.99)))
+                .append(", \"max\": ").append(millis(imageLatency.getMax())).append("},\n");
+        json.append("  \"stages\": {\n");
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            json.append("    \"").append(stage.name().toLowerCase(Locale.ROOT)).append("\": {\"count\": ")
+                    .append(stageCounts.get(stage).sum()).append(", \"totalMillis\": ")
+                    .append(millis(getStageNanos(stage))).append("}").append(i < stages.length - 1 ? ",\n" : "\n");
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static String escape(String text) {
+        var escaped = new StringBuilder(text.length());
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String rate(double amount, double seconds) {
+        return String.format(Locale.ROOT, "%.3f", seconds > 0 ? amount / seconds : 0);
+    }
+
+    private static final Span NO_SPAN = new Span();
+
+    /**
+     * A stage in progress.
+     */
+    public static class Span {
+        private final RunMetrics metrics;
+        private final Stage stage;
+        private final String fileName;
+        private final long start;
+        private final FlightEvents.StageEvent event;
+
+        private Span() {
+            this.metrics = null;
+            this.stage = null;
+            this.fileName = null;
+            this.start = 0;
+            this.event = null;
+        }
+
+        private Span(RunMetrics metrics, Stage stage, String fileName) {
+            this.metrics = metrics;
+            this.stage = stage;
+            this.fileName = fileName;
+            this.start = System.nanoTime();
+            this.event = new FlightEvents.StageEvent();
+            event.begin();
+        }
+
+        /**
+         * Ends the stage and adds its time to the totals.
+         *
+         * @param bytes the bytes the stage processed, or 0
+         */
+        public void end(long bytes) {
+            if (metrics == null) {
+                return;
+            }
+            metrics.stageNanos.get(stage).add(System.nanoTime() - start);
+            metrics.stageCounts.get(stage).increment();
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage.name();
+                event.file = fileName;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+}
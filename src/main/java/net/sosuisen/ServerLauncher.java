@@ -0,0 +1,142 @@
+package net.sosuisen;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Launcher that runs a {@link ConversionServer}, so that other tools can send
+ * images over HTTP and get PDFs back without starting the JavaFX toolkit.
+ * <p>
+ * The server listens on the loopback address only.
+ *
+ * <pre>
+ * java -cp pdf-creator-1.0-SNAPSHOT.jar net.sosuisen.ServerLauncher --port 8765
+ * curl -F title=scan -F file=@0001.jpg -F file=@0002.jpg -o scan.pdf http://localhost:8765/pdf
+ * </pre>
+ * With {@code --allow-folders}, the token that folder conversions must send
+ * is printed when the server starts.
+ */
+public class ServerLauncher {
+    private static final String USAGE = """
+            Usage: ServerLauncher [options]
+                  --port <n>              port on the loopback address (default: 8765; 0: any free port)
+              -j, --jobs <n>              conversions that run at the same time (default: 2)
+                  --queue <n>             further requests that may upload or wait; more are turned
+                                          away with 503 (default: 8)
+              -w, --workers <n>           images decoded/encoded at once across all conversions
+                                          (default: number of processors)
+                  --memory-budget <MiB>   read-ahead budget shared by all conversions
+                  --max-upload <MiB>      largest upload after unpacking zip files (default: 2048)
+                  --low-memory            keep image data in a scratch file instead of the heap
+                  --cache-dir <dir>       cache of converted images (default: ~/.pdf-creator/cache)
+                  --cache-max <MiB>       disk cap of the cache (default: 2048)
+                  --no-cache              do not use the cache
+              -p, --profile <name>        default output profile: original (default), standard, small, gray
+                  --allow-folders         also convert local folders given with ?folder=<path>; such
+                                          requests must send the token printed at start-up
+              -h, --help                  show this help
+
+            Endpoints:
+              POST /pdf?title=<title>     multipart/form-data images (zip files are unpacked) or an
+                                          application/zip body; responds with the PDF
+              POST /pdf?folder=<path>     with the header "Authorization: Bearer <token>"; converts a
+                                          local folder in place (--allow-folders)
+              GET  /metrics               counters in the Prometheus text format
+            """;
+
+    public static void main(String[] args) {
+        int status = run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Starts the server, which keeps the process running until it is
+     * stopped, and returns the exit code.
+     *
+     * @param args the command-line arguments
+     * @return 0 once the server is listening, 1 if it cannot start, 2 on
+     *         usage errors
+     */
+    static int run(String[] args) {
+        int port = 8765;
+        int jobs = 2;
+        int queue = 8;
+        long maxUploadBytes = 2048L * 1024 * 1024;
+        Path cacheDirectory = ImageCache.DEFAULT_DIRECTORY;
+        long cacheMaxBytes = ImageCache.DEFAULT_MAX_BYTES;
+        boolean allowFolders = false;
+        var options = PdfCreationOptions.builder();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--port" -> port = Integer.parseInt(value(args, ++i, arg));
+                    case "-j", "--jobs" -> jobs = Integer.parseInt(value(args, ++i, arg));
+                    case "--queue" -> queue = Integer.parseInt(value(args, ++i, arg));
+                    case "-w", "--workers" -> options.workers(Integer.parseInt(value(args, ++i, arg)));
+                    case "--memory-budget" -> options.memoryBudget(mebibytes(value(args, ++i, arg)));
+                    case "--max-upload" -> maxUploadBytes = mebibytes(value(args, ++i, arg));
+                    case "--low-memory" -> options.lowMemory(true);
+                    case "--cache-dir" -> cacheDirectory = Path.of(value(args, ++i, arg));
+                    case "--cache-max" -> cacheMaxBytes = mebibytes(value(args, ++i, arg));
+                    case "--no-cache" -> cacheDirectory = null;
+                    case "-p", "--profile" -> options.profile(OutputProfile.forId(value(args, ++i, arg)));
+                    case "--allow-folders" -> allowFolders = true;
+                    case "-h", "--help" -> {
+                        System.out.print(USAGE);
+                        return 0;
+                    }
+                    default -> throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (jobs <= 0 || queue < 0 || maxUploadBytes <= 0) {
+                throw new IllegalArgumentException("--jobs and --max-upload must be positive, --queue not negative");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return 2;
+        }
+
+        if (cacheDirectory != null) {
+            try {
+                options.imageCache(ImageCache.open(cacheDirectory, cacheMaxBytes));
+            } catch (IOException e) {
+                System.err.println("Could not open image cache: " + e.getMessage());
+            }
+        }
+
+        ConversionServer server;
+        try {
+            server = new ConversionServer(port, options.build(), jobs, queue, maxUploadBytes, allowFolders);
+        } catch (IOException e) {
+            System.err.println("Could not start the server: " + e.getMessage());
+            return 1;
+        }
+        // Running conversions are cancelled on Ctrl+C
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        WarmUp.startInBackground();
+        server.start();
+        var address = server.getAddress();
+        System.out.println("Listening on http://" + address.getHostString() + ":" + address.getPort()
+                + "/; press Ctrl+C to stop.");
+        if (server.getFolderToken() != null) {
+            System.out.println("Folder token: " + server.getFolderToken());
+        }
+        return 0;
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static long mebibytes(String value) {
+        return Long.parseLong(value) * 1024 * 1024;
+    }
+}
@@ -0,0 +1,290 @@
+package net.sosuisen;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Embeds images too large to decode at once, such as 30000 × 20000 pixel map
+ * and blueprint scans, without ever holding their full raster.
+ * <p>
+ * The image is read from its file in horizontal strips with ImageIO source
+ * regions, and each row is compressed into a FlateDecode stream as soon as it
+ * has been read. The stream is written straight into the document's
+ * {@link COSStream}, so heap use depends on the strip height, which is chosen
+ * to keep one strip under {@link #STRIP_BYTES}, and not on the image size.
+ * Keep the document in a scratch file to bound the heap for the compressed
+ * output as well.
+ * <p>
+ * The result has the same geometry and colors as {@link ImageEncoder}
+ * produces for the same file: palette images keep their palette as an
+ * /Indexed color space with a color key or soft mask, 8-bit gray stays
+ * DeviceGray, and everything else becomes 8-bit DeviceRGB with an optional
+ * soft mask.
+ * <p>
+ * BMP readers seek to the rows of a region directly. PNG and GIF readers
+ * decode the rows above a region again for every strip, so such images take
+ * several times as long as a full decode would; that is the price of not
+ * running out of memory.
+ */
+final class StripedEncoder {
+    /**
+     * Largest decoded strip, in bytes at four bytes per pixel. Also the size
+     * above which an image is embedded in strips.
+     */
+    static final long STRIP_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Bytes of the PNG signature and IHDR chunk up to the interlace method.
+     */
+    private static final int PNG_HEADER_LENGTH = 29;
+
+    private StripedEncoder() {
+    }
+
+    /**
+     * Tells whether an image has to be decoded to be embedded and is too
+     * large to decode at once. JPEG files and PNG files without alpha or
+     * interlacing are copied without decoding, whatever their size.
+     *
+     * @param file   the image file
+     * @param width  the width from the image header
+     * @param height the height from the image header
+     * @return true if the image should be embedded in strips
+     * @throws IOException if the file cannot be read
+     */
+    static boolean isRequired(File file, int width, int height) throws IOException {
+        if (4L * width * height <= STRIP_BYTES) {
+            return false;
+        }
+        byte[] header = new byte[PNG_HEADER_LENGTH];
+        int length;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            length = in.readNBytes(header, 0, header.length);
+        }
+        ImageFormat format = ImageFormat.detect(header, length);
+        if (format == ImageFormat.GIF || format == ImageFormat.BMP) {
+            return true;
+        }
+        if (format == ImageFormat.PNG && length == PNG_HEADER_LENGTH) {
+            // IHDR color types 4 and 6 carry alpha; PDFBox only copies the data of
+            // non-interlaced images without it
+            int colorType = header[25];
+            int interlace = header[28];
+            return (colorType & 4) != 0 || interlace != 0;
+        }
+        return false;
+    }
+
+    /**
+     * @param width the image width
+     * @return the number of rows per strip
+     */
+    static int stripHeight(int width) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, STRIP_BYTES / (4L * Math.max(1, width))));
+    }
+
+    /**
+     * Embeds an image strip by strip.
+     *
+     * @param file     the image file
+     * @param document the document that the image is created in
+     * @param metrics  the metrics to record {@link RunMetrics.Stage#DECODE}
+     *                 and {@link RunMetrics.Stage#ENCODE} to, or null
+     * @return the image XObject
+     * @throws IOException if the file cannot be read or decoded
+     */
+    static PDImageXObject createImage(File file, PDDocument document, RunMetrics metrics) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                // Not forward-only: formats without random access go back for each strip
+                reader.setInput(in, false, true);
+                return embed(reader, file.getName(), document, metrics);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static PDImageXObject embed(ImageReader reader, String fileName, PDDocument document,
+            RunMetrics metrics) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int stripHeight = stripHeight(width);
+        BufferedImage strip = readStrip(reader, 0, Math.min(stripHeight, height), width, fileName, metrics);
+        Layout layout = Layout.of(strip.getColorModel());
+
+        COSStream pixels = document.getDocument().createCOSStream();
+        COSStream alphas = layout.alpha ? document.getDocument().createCOSStream() : null;
+        try (OutputStream out = ImageEncoder.deflater(pixels.createRawOutputStream());
+                OutputStream alphaOut = alphas != null ? ImageEncoder.deflater(alphas.createRawOutputStream())
+                        : OutputStream.nullOutputStream()) {
+            var rows = new RowWriter(layout, width);
+            for (int y = 0; y < height; y += stripHeight) {
+                if (y > 0) {
+                    strip = readStrip(reader, y, Math.min(stripHeight, height - y), width, fileName, metrics);
+                }
+                var span = RunMetrics.start(metrics, RunMetrics.Stage.ENCODE, fileName);
+                for (int row = 0; row < strip.getHeight(); row++) {
+                    rows.write(strip, row, out, alphaOut);
+                }
+                span.end(0);
+                // Let the strip be collected before the next one is decoded
+                strip = null;
+            }
+        }
+
+        var image = new PDImageXObject(new PDStream(pixels), null);
+        setImageEntries(image, width, height, layout.bitsPerComponent, layout.colorSpace);
+        if (layout.colorKey >= 0) {
+            var mask = new COSArray();
+            mask.add(COSInteger.get(layout.colorKey));
+            mask.add(COSInteger.get(layout.colorKey));
+            image.getCOSObject().setItem(COSName.MASK, mask);
+        } else if (alphas != null) {
+            var softMask = new PDImageXObject(new PDStream(alphas), null);
+            setImageEntries(softMask, width, height, 8, PDDeviceGray.INSTANCE);
+            image.getCOSObject().setItem(COSName.SMASK, softMask);
+        }
+        return image;
+    }
+
+    private static BufferedImage readStrip(ImageReader reader, int y, int rows, int width, String fileName,
+            RunMetrics metrics) throws IOException {
+        var span = RunMetrics.start(metrics, RunMetrics.Stage.DECODE, fileName);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, y, width, rows));
+        BufferedImage strip = reader.read(0, param);
+        span.end(0);
+        return strip;
+    }
+
+    private static void setImageEntries(PDImageXObject image, int width, int height, int bitsPerComponent,
+            PDColorSpace colorSpace) {
+        image.getCOSObject().setItem(COSName.TYPE, COSName.XOBJECT);
+        image.getCOSObject().setItem(COSName.SUBTYPE, COSName.IMAGE);
+        image.getCOSObject().setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        image.setWidth(width);
+        image.setHeight(height);
+        image.setBitsPerComponent(bitsPerComponent);
+        image.setColorSpace(colorSpace);
+    }
+
+    /**
+     * How the samples of a decoded image are written, decided from the first
+     * strip; every strip of an image has the same color model.
+     */
+    private static final class Layout {
+        final IndexColorModel palette;
+        final boolean gray;
+        final boolean alpha;
+        final int colorKey;
+        final int bitsPerComponent;
+        final PDColorSpace colorSpace;
+
+        private Layout(IndexColorModel palette, boolean gray, boolean alpha, int colorKey, int bitsPerComponent,
+                PDColorSpace colorSpace) {
+            this.palette = palette;
+            this.gray = gray;
+            this.alpha = alpha;
+            this.colorKey = colorKey;
+            this.bitsPerComponent = bitsPerComponent;
+            this.colorSpace = colorSpace;
+        }
+
+        static Layout of(ColorModel colorModel) throws IOException {
+            if (colorModel instanceof IndexColorModel palette) {
+                int transparent = palette.getTransparentPixel();
+                boolean colorKey = transparent >= 0 && ImageEncoder.isColorKeyOnly(palette, transparent);
+                return new Layout(palette, false, palette.hasAlpha() && !colorKey, colorKey ? transparent : -1,
+                        ImageEncoder.indexBits(palette), ImageEncoder.indexedColorSpace(palette));
+            }
+            boolean gray = colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY
+                    && colorModel.getNumComponents() == 1 && colorModel.getComponentSize(0) == 8;
+            return new Layout(null, gray, colorModel.hasAlpha(), -1, 8,
+                    gray ? PDDeviceGray.INSTANCE : PDDeviceRGB.INSTANCE);
+        }
+    }
+
+    /**
+     * Converts one row at a time into the bytes of the image stream and its
+     * soft mask, reusing its buffers.
+     */
+    private static final class RowWriter {
+        private final Layout layout;
+        private final int width;
+        private final int[] samples;
+        private final byte[] packed;
+        private final byte[] alphaRow;
+
+        RowWriter(Layout layout, int width) {
+            this.layout = layout;
+            this.width = width;
+            this.samples = new int[width];
+            int rowBytes = layout.palette != null ? (width * layout.bitsPerComponent + 7) / 8
+                    : layout.gray ? width : 3 * width;
+            this.packed = new byte[rowBytes];
+            this.alphaRow = new byte[width];
+        }
+
+        void write(BufferedImage strip, int y, OutputStream out, OutputStream alphaOut) throws IOException {
+            if (layout.palette != null) {
+                strip.getRaster().getSamples(0, y, width, 1, 0, samples);
+                ImageEncoder.pack(samples, layout.bitsPerComponent, packed);
+                if (layout.alpha) {
+                    for (int x = 0; x < width; x++) {
+                        alphaRow[x] = (byte) layout.palette.getAlpha(samples[x]);
+                    }
+                }
+            } else if (layout.gray) {
+                // Through the sRGB conversion of getRGB, as LosslessFactory does
+                strip.getRGB(0, y, width, 1, samples, 0, width);
+                for (int x = 0; x < width; x++) {
+                    packed[x] = (byte) samples[x];
+                }
+            } else {
+                strip.getRGB(0, y, width, 1, samples, 0, width);
+                for (int x = 0, i = 0; x < width; x++) {
+                    int argb = samples[x];
+                    packed[i++] = (byte) (argb >> 16);
+                    packed[i++] = (byte) (argb >> 8);
+                    packed[i++] = (byte) argb;
+                    alphaRow[x] = (byte) (argb >>> 24);
+                }
+            }
+            out.write(packed);
+            if (layout.alpha) {
+                alphaOut.write(alphaRow);
+            }
+        }
+    }
+}
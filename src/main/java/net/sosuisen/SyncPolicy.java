@@ -0,0 +1,27 @@
+package net.sosuisen;
+
+/**
+ * How far a written PDF is forced to the storage device before and after it
+ * is renamed onto its final name.
+ */
+public enum SyncPolicy {
+    /**
+     * Leaves writing back to the operating system. Fastest; after a power
+     * failure the PDF may be empty or partly written even though it was
+     * renamed.
+     */
+    NONE,
+
+    /**
+     * Forces the file's data to the device before it is renamed, so the
+     * final name always refers to a complete PDF. The default.
+     */
+    FILE,
+
+    /**
+     * Also forces the folder after the rename, so the rename itself survives
+     * a power failure. Not supported on every platform; where it is not, the
+     * folder is left as with {@link #FILE}.
+     */
+    FILE_AND_DIRECTORY
+}
@@ -0,0 +1,320 @@
+package net.sosuisen;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Small previews of image files, kept in a bounded LRU cache in memory and
+ * another one on disk.
+ * <p>
+ * A thumbnail is decoded with ImageIO source subsampling, so only about
+ * {@code size} pixels per side of the original are ever read into memory,
+ * then scaled to fit a {@code size} × {@code size} square. Thumbnails are
+ * keyed by path, file size and modification time, so a changed file gets a new
+ * one. On disk they are stored as JPEG files and the least recently used are
+ * deleted once the cap is exceeded, as in {@link ImageCache}.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class ThumbnailCache {
+    /**
+     * Default disk directory: {@code ~/.pdf-creator/thumbnails}.
+     */
+    public static final Path DEFAULT_DIRECTORY = Path.of(System.getProperty("user.home"), ".pdf-creator",
+            "thumbnails");
+
+    /**
+     * Default length of the longer side of a thumbnail, in pixels.
+     */
+    public static final int DEFAULT_SIZE = 128;
+
+    /**
+     * Default memory cap: 32 MiB, about 500 thumbnails of the default size.
+     */
+    public static final long DEFAULT_MAX_MEMORY = 32L * 1024 * 1024;
+
+    /**
+     * Default disk cap: 256 MiB.
+     */
+    public static final long DEFAULT_MAX_DISK = 256L * 1024 * 1024;
+
+    private final Path directory;
+    private final int size;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final Map<String, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes;
+    private final AtomicLong diskBytes = new AtomicLong();
+
+    private ThumbnailCache(Path directory, int size, long maxMemoryBytes, long maxDiskBytes) throws IOException {
+        this.directory = directory;
+        this.size = size;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            diskBytes.set(listFiles().stream().mapToLong(DiskEntry::size).sum());
+        }
+    }
+
+    /**
+     * Opens a thumbnail cache with the default size and caps.
+     *
+     * @param directory the disk directory, or null to keep thumbnails in
+     *                  memory only
+     * @return the cache
+     * @throws IOException if the directory cannot be created or read
+     */
+    public static ThumbnailCache open(Path directory) throws IOException {
+        return new ThumbnailCache(directory, DEFAULT_SIZE, DEFAULT_MAX_MEMORY, DEFAULT_MAX_DISK);
+    }
+
+    /**
+     * Opens a thumbnail cache.
+     *
+     * @param directory      the disk directory, or null to keep thumbnails in
+     *                       memory only
+     * @param size           the longer side of a thumbnail in pixels
+     * @param maxMemoryBytes the memory cap in bytes
+     * @param maxDiskBytes   the disk cap in bytes
+     * @return the cache
+     * @throws IOException if the directory cannot be created or read
+     */
+    public static ThumbnailCache open(Path directory, int size, long maxMemoryBytes, long maxDiskBytes)
+            throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        return new ThumbnailCache(directory, size, maxMemoryBytes, maxDiskBytes);
+    }
+
+    /**
+     * @return the longer side of a thumbnail in pixels
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the thumbnail held in memory for a path, without touching the
+     * file system. Cheap enough for the JavaFX Application Thread; the
+     * thumbnail may be out of date if the file changed since.
+     *
+     * @param file the image file
+     * @return the thumbnail, or null if none is in memory
+     */
+    public synchronized BufferedImage getIfPresent(File file) {
+        Entry entry = memory.get(file.getAbsolutePath());
+        return entry != null ? entry.image() : null;
+    }
+
+    /**
+     * Returns the thumbnail of an image file, from memory, from disk, or by
+     * decoding the file. May block for a while; call it on a background thread.
+     *
+     * @param file the image file
+     * @return the thumbnail
+     * @throws IOException if the file cannot be read or is not a supported image
+     */
+    public BufferedImage get(File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        String key = ContentHash.of(file.getAbsolutePath() + '\0' + attrs.size() + '\0'
+                + attrs.lastModifiedTime().toMillis() + '\0' + size);
+        synchronized (this) {
+            Entry entry = memory.get(file.getAbsolutePath());
+            if (entry != null && entry.key().equals(key)) {
+                return entry.image();
+            }
+        }
+        BufferedImage image = directory != null ? readDisk(key) : null;
+        if (image == null) {
+            image = decode(file, size);
+            if (directory != null) {
+                writeDisk(key, image);
+            }
+        }
+        remember(file.getAbsolutePath(), new Entry(key, image));
+        return image;
+    }
+
+    /**
+     * Decodes a thumbnail with source subsampling and scales it to fit a
+     * square of the given size, on a white background.
+     *
+     * @param file the image file
+     * @param size the longer side of the thumbnail
+     * @return the thumbnail
+     * @throws IOException if the file cannot be read or is not a supported image
+     */
+    static BufferedImage decode(File file, int size) throws IOException {
+        BufferedImage source;
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                // Read every n-th pixel so the result is still at least the thumbnail size
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / size);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        double scale = Math.min(1, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        var thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return thumbnail;
+    }
+
+    private synchronized void remember(String path, Entry entry) {
+        Entry previous = memory.put(path, entry);
+        if (previous != null) {
+            memoryBytes -= previous.bytes();
+        }
+        memoryBytes += entry.bytes();
+        Iterator<Entry> eldest = memory.values().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            memoryBytes -= eldest.next().bytes();
+            eldest.remove();
+        }
+    }
+
+    private BufferedImage readDisk(String key) {
+        Path file = shard(key);
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(Files.readAllBytes(file)));
+            try {
+                // Refresh the entry's position in the LRU order
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (NoSuchFileException e) {
+                // Evicted while it was being read
+            }
+            return image;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, BufferedImage image) {
+        try {
+            var jpeg = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", jpeg);
+            Path target = shard(key);
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(target.getParent(), key, ".tmp");
+            try {
+                Files.write(temp, jpeg.toByteArray());
+                try {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            if (diskBytes.addAndGet(jpeg.size()) > maxDiskBytes) {
+                evictDisk();
+            }
+        } catch (IOException e) {
+            // The disk cache is an optimization; the thumbnail is still shown.
+            System.err.println("Could not store thumbnail: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes least recently used thumbnails until the disk cache is at 90% of
+     * its cap.
+     */
+    private synchronized void evictDisk() throws IOException {
+        if (diskBytes.get() <= maxDiskBytes) {
+            return;
+        }
+        List<DiskEntry> entries = listFiles();
+        entries.sort(Comparator.comparing(DiskEntry::lastUsed));
+        long total = entries.stream().mapToLong(DiskEntry::size).sum();
+        long target = maxDiskBytes / 10 * 9;
+        for (DiskEntry entry : entries) {
+            if (total <= target) {
+                break;
+            }
+            if (Files.deleteIfExists(entry.path())) {
+                total -= entry.size();
+            }
+        }
+        diskBytes.set(total);
+    }
+
+    private List<DiskEntry> listFiles() throws IOException {
+        List<DiskEntry> entries = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(".tmp")) {
+                    entries.add(new DiskEntry(file, attrs.size(), attrs.lastModifiedTime()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    private Path shard(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".jpg");
+    }
+
+    private record Entry(String key, BufferedImage image) {
+        long bytes() {
+            return 4L * image.getWidth() * image.getHeight();
+        }
+    }
+
+    private record DiskEntry(Path path, long size, FileTime lastUsed) {
+    }
+}
@@ -0,0 +1,211 @@
+package net.sosuisen;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javafx.application.Platform;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+
+/**
+ * A scrolling grid of page thumbnails in page order.
+ * <p>
+ * The grid is a {@link ListView} whose rows each hold as many thumbnails as
+ * fit the width, so only the visible rows have cells and a folder with tens of
+ * thousands of images costs no more than a screenful. Rows have a fixed
+ * height, which spares the list from measuring them while scrolling.
+ * Thumbnails come from a {@link ThumbnailCache} and are decoded on a small
+ * pool of background threads; a cell that scrolls out of view cancels its
+ * pending load.
+ */
+public final class ThumbnailGrid extends ListView<List<ThumbnailGrid.Page>> {
+    /**
+     * One page of the preview.
+     *
+     * @param number the one-based page number
+     * @param file   the image file
+     */
+    public record Page(int number, File file) {
+    }
+
+    private static final double IMAGE_SIZE = 96;
+    private static final double TILE_WIDTH = 112;
+    private static final double ROW_HEIGHT = 128;
+    private static final double GAP = 4;
+    /** Room for the vertical scroll bar and the list's insets. */
+    private static final double RESERVED_WIDTH = 24;
+
+    private static final ExecutorService LOADER = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+            runnable -> Thread.ofPlatform().name("thumbnail-loader").daemon().unstarted(runnable));
+
+    private ThumbnailCache thumbnailCache;
+    private List<File> files = List.of();
+    private int columns;
+
+    public ThumbnailGrid() {
+        getStyleClass().add("thumbnail-grid");
+        setFixedCellSize(ROW_HEIGHT);
+        setCellFactory(listView -> new RowCell());
+        widthProperty().addListener((observable, oldWidth, newWidth) -> layoutRows(false));
+    }
+
+    /**
+     * @param thumbnailCache the cache that thumbnails are loaded from
+     */
+    public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    /**
+     * Shows the given images as pages, replacing the previous ones.
+     *
+     * @param files the images in page order
+     */
+    public void setFiles(List<File> files) {
+        this.files = List.copyOf(files);
+        layoutRows(true);
+        scrollTo(0);
+    }
+
+    /**
+     * Splits the pages into rows of as many thumbnails as fit the width.
+     */
+    private void layoutRows(boolean filesChanged) {
+        int fit = Math.max(1, (int) ((getWidth() - RESERVED_WIDTH + GAP) / (TILE_WIDTH + GAP)));
+        if (!filesChanged && fit == columns) {
+            return;
+        }
+        columns = fit;
+        List<List<Page>> rows = new ArrayList<>((files.size() + columns - 1) / columns);
+        for (int start = 0; start < files.size(); start += columns) {
+            List<Page> row = new ArrayList<>(columns);
+            for (int i = start; i < Math.min(start + columns, files.size()); i++) {
+                row.add(new Page(i + 1, files.get(i)));
+            }
+            rows.add(row);
+        }
+        getItems().setAll(rows);
+    }
+
+    /**
+     * Converts a thumbnail to a JavaFX image. Safe to call on any thread.
+     */
+    private static Image toFxImage(BufferedImage thumbnail) {
+        int width = thumbnail.getWidth();
+        int height = thumbnail.getHeight();
+        int[] argb = thumbnail.getRGB(0, 0, width, height, null, 0, width);
+        var image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+        return image;
+    }
+
+    private class RowCell extends ListCell<List<Page>> {
+        private final HBox box = new HBox(GAP);
+        private final List<Tile> tiles = new ArrayList<>();
+
+        @Override
+        protected void updateItem(List<Page> row, boolean empty) {
+            super.updateItem(row, empty);
+            if (empty || row == null) {
+                tiles.forEach(tile -> tile.show(null));
+                setGraphic(null);
+                return;
+            }
+            while (tiles.size() < row.size()) {
+                var tile = new Tile();
+                tiles.add(tile);
+                box.getChildren().add(tile);
+            }
+            for (int i = 0; i < tiles.size(); i++) {
+                tiles.get(i).show(i < row.size() ? row.get(i) : null);
+            }
+            setGraphic(box);
+        }
+
+        @Override
+        public void updateSelected(boolean selected) {
+            // Rows are only a layout device; a highlighted row would mean nothing
+            super.updateSelected(false);
+        }
+    }
+
+    private class Tile extends VBox {
+        private final ImageView imageView = new ImageView();
+        private final Label label = new Label();
+        private Page page;
+        private Future<?> loading;
+
+        Tile() {
+            super(2);
+            setAlignment(Pos.TOP_CENTER);
+            setMinWidth(TILE_WIDTH);
+            setPrefWidth(TILE_WIDTH);
+            setMaxWidth(TILE_WIDTH);
+            imageView.setFitWidth(IMAGE_SIZE);
+            imageView.setFitHeight(IMAGE_SIZE);
+            imageView.setPreserveRatio(true);
+            label.setMaxWidth(TILE_WIDTH);
+            label.getStyleClass().add("thumbnail-label");
+            var frame = new VBox(imageView);
+            frame.setAlignment(Pos.CENTER);
+            frame.setMinSize(IMAGE_SIZE, IMAGE_SIZE);
+            frame.setPrefSize(IMAGE_SIZE, IMAGE_SIZE);
+            frame.getStyleClass().add("thumbnail-frame");
+            getChildren().addAll(frame, label);
+        }
+
+        void show(Page page) {
+            if (Objects.equals(this.page, page)) {
+                return;
+            }
+            if (loading != null) {
+                loading.cancel(false);
+                loading = null;
+            }
+            this.page = page;
+            setVisible(page != null);
+            if (page == null) {
+                imageView.setImage(null);
+                return;
+            }
+            label.setText(page.number() + ". " + page.file().getName());
+
+            ThumbnailCache cache = thumbnailCache;
+            BufferedImage cached = cache != null ? cache.getIfPresent(page.file()) : null;
+            imageView.setImage(cached != null ? toFxImage(cached) : null);
+            if (cached != null || cache == null) {
+                return;
+            }
+            loading = LOADER.submit(() -> {
+                Image image;
+                try {
+                    image = toFxImage(cache.get(page.file()));
+                } catch (IOException | RuntimeException e) {
+                    // Left blank; the conversion reports unreadable images
+                    return;
+                }
+                Platform.runLater(() -> {
+                    if (this.page == page) {
+                        imageView.setImage(image);
+                    }
+                });
+            });
+        }
+    }
+}
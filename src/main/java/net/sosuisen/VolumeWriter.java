@@ -0,0 +1,443 @@
+package net.sosuisen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ * Adds the pages of one run to one output document, or to a series of
+ * volumes of limited size or page count.
+ * <p>
+ * A volume ends before the page that would take it over a limit. Its size is
+ * the sum of the encoded image streams plus a fixed allowance per page, which
+ * is close to the saved size because image streams are written as they are. A
+ * full volume is saved on its own thread while the assembler goes on with the
+ * next one, so several volumes are written at once; at most
+ * {@link #MAX_PENDING_SAVES} volumes wait in memory for their save to finish.
+ * <p>
+ * Identical images share one XObject within a volume only. When a volume is
+ * full, the image streams it holds are copied to a scratch file of the run,
+ * and a duplicate whose image went into an earlier volume gets the copy
+ * instead of being decoded and encoded again.
+ * <p>
+ * Each volume is written through an {@link OutputFile} and left under its
+ * temporary name until every volume of the run is complete; only then are
+ * they renamed into place, and volumes of an earlier run beyond the new last
+ * one are deleted. A save in progress stops as soon as the run is cancelled.
+ * <p>
+ * Used by the assembler thread only. If the run fails or is cancelled,
+ * {@link #close()} deletes the temporary files, and the volumes of the
+ * previous run stay as they were.
+ */
+class VolumeWriter implements PageWriter {
+    /**
+     * Allowance for the page dictionary, content stream and cross-reference
+     * entries of one page, in bytes.
+     */
+    static final long PAGE_OVERHEAD = 1024;
+
+    /**
+     * Allowance for the catalog, page tree, document information and trailer,
+     * in bytes.
+     */
+    static final long DOCUMENT_OVERHEAD = 4096;
+
+    /**
+     * How many full volumes may be saving at the same time.
+     */
+    static final int MAX_PENDING_SAVES = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    private final File folder;
+    private final String pdfTitle;
+    private final PdfCreationOptions options;
+    private final RunMetrics metrics;
+    private final BooleanSupplier cancelled;
+    private final ExecutorService savers = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore pendingSaves = new Semaphore(MAX_PENDING_SAVES);
+    private final List<Future<SavedVolume>> saves = new ArrayList<>();
+    private final Map<String, Long> bytesByContentHash = new HashMap<>();
+    private final Calendar modified = Calendar.getInstance();
+    private final SpilledImages spilled;
+    private Volume current;
+    private boolean finished;
+
+    /**
+     * @param folder    the folder the PDF is written to
+     * @param pdfTitle  the PDF title, with or without the .pdf extension
+     * @param options   the creation settings, including the volume limits
+     * @param metrics   the metrics to record saving to
+     * @param cancelled polled while saving; a save stops once it returns true
+     */
+    VolumeWriter(File folder, String pdfTitle, PdfCreationOptions options, RunMetrics metrics,
+            BooleanSupplier cancelled) {
+        this.folder = folder;
+        this.pdfTitle = pdfTitle;
+        this.options = options;
+        this.metrics = metrics;
+        this.cancelled = cancelled;
+        this.spilled = new SpilledImages(options.getScratchDirectory());
+        this.current = newVolume(1);
+    }
+
+    /**
+     * Adds a page for the prepared image, starting a new volume first if the
+     * page would not fit into the current one.
+     *
+     * @param prepared the next image from the pipeline
+     * @return what was drawn on the page
+     * @throws IOException          if the image cannot be added
+     * @throws InterruptedException if interrupted while waiting for a save slot
+     */
+    @Override
+    public AddedPage addPage(PreparedImage prepared) throws IOException, InterruptedException {
+        if (finished) {
+            throw new IllegalStateException("The volumes are already finished");
+        }
+        // A page with the same content as an earlier one draws the same XObject
+        PDImageXObject image = current.embedded.find(prepared);
+        long bytes = image != null ? 0 : imageBytes(prepared);
+        if (current.isFull(bytes)) {
+            startVolume();
+            image = null;
+            bytes = imageBytes(prepared);
+        }
+
+        ImageSource source;
+        long importedBytes = 0;
+        if (image != null) {
+            source = ImageSource.DUPLICATE;
+        } else {
+            if (prepared.isDuplicate()) {
+                // The first page with this content is in an earlier volume, which left a copy of its stream
+                image = spilled.read(prepared.getContentHash(), current.document);
+                source = ImageSource.DUPLICATE;
+            } else {
+                image = prepared.importInto(current.document);
+                source = prepared.getSource();
+                if (prepared.getContentHash() != null) {
+                    bytesByContentHash.put(prepared.getContentHash(), bytes);
+                    current.originals.put(prepared.getContentHash(), image);
+                }
+            }
+            importedBytes = image.getCOSObject().getLength();
+            current.embedded.add(prepared, image);
+        }
+        PDPage page = PdfCreationEngine.addImagePage(current.document, image, prepared.getPageSize());
+        PageSources.record(page, PageSources.name(folder, prepared.getFile()), modified);
+        current.pages++;
+        current.bytes += PAGE_OVERHEAD + bytes;
+        return new AddedPage(source, importedBytes);
+    }
+
+    /**
+     * Saves the last volume and waits until every volume has been written.
+     *
+     * @return the written files in page order
+     * @throws IOException           if a volume could not be saved
+     * @throws CancellationException if the run was cancelled while saving
+     * @throws InterruptedException  if interrupted while waiting
+     */
+    @Override
+    public List<File> finish() throws IOException, InterruptedException {
+        if (finished) {
+            throw new IllegalStateException("The volumes are already finished");
+        }
+        finished = true;
+        Volume last = current;
+        current = null;
+        if (!options.isSplit()) {
+            // A single document is saved on the calling thread
+            try (OutputFile output = save(last).output()) {
+                output.moveIntoPlace();
+            }
+            return List.of(last.file);
+        }
+        submitSave(last);
+        List<SavedVolume> saved = new ArrayList<>(saves.size());
+        for (Future<SavedVolume> save : saves) {
+            saved.add(await(save));
+        }
+        // Every volume is complete, so they can replace the previous run's volumes
+        List<File> files = new ArrayList<>(saved.size());
+        for (SavedVolume volume : saved) {
+            volume.output().moveIntoPlace();
+            files.add(volume.file());
+        }
+        deleteStaleVolumes(saved.size() + 1);
+        return files;
+    }
+
+    /**
+     * Discards the volume being assembled, waits for running saves and
+     * deletes the temporary files of volumes that were not renamed into
+     * place.
+     */
+    @Override
+    public void close() {
+        if (current != null) {
+            closeQuietly(current.document);
+            current = null;
+        }
+        savers.close();
+        spilled.close();
+        for (Future<SavedVolume> save : saves) {
+            try {
+                save.get().output().close();
+            } catch (IOException e) {
+                System.err.println("Could not delete a temporary volume: " + e.getMessage());
+            } catch (ExecutionException | InterruptedException ignore) {
+                // Nothing was written, or the failed save removes its own file
+            }
+        }
+    }
+
+    /**
+     * @return the encoded size of the image, or for a duplicate the size of
+     *         its original, which it needs if it starts a new volume
+     */
+    private long imageBytes(PreparedImage prepared) {
+        if (prepared.isDuplicate()) {
+            return bytesByContentHash.getOrDefault(prepared.getContentHash(), 0L);
+        }
+        return prepared.getEncodedBytes();
+    }
+
+    private void startVolume() throws IOException, InterruptedException {
+        Volume full = current;
+        current = null;
+        try {
+            // Later volumes may repeat these images, and the document is gone once saved
+            for (Map.Entry<String, PDImageXObject> original : full.originals.entrySet()) {
+                spilled.write(original.getKey(), original.getValue().getCOSObject());
+            }
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(full.document);
+            throw e;
+        }
+        submitSave(full);
+        current = newVolume(full.number + 1);
+    }
+
+    private void submitSave(Volume volume) throws InterruptedException {
+        // Bounds the volumes held in memory when saving falls behind
+        pendingSaves.acquire();
+        try {
+            saves.add(savers.submit(() -> {
+                try {
+                    return save(volume);
+                } finally {
+                    pendingSaves.release();
+                }
+            }));
+        } catch (RuntimeException e) {
+            pendingSaves.release();
+            closeQuietly(volume.document);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a volume to its temporary file and closes its document.
+     *
+     * @return the volume with its completed, not yet renamed output
+     */
+    private SavedVolume save(Volume volume) throws IOException {
+        var output = OutputFile.create(volume.file, options.getSyncPolicy(), cancelled);
+        boolean completed = false;
+        try (PDDocument document = volume.document) {
+            var span = metrics.start(RunMetrics.Stage.SAVE, volume.file.getName());
+            document.save(output.stream());
+            output.complete();
+            span.end(output.getBytesWritten());
+            metrics.outputWritten(output.getBytesWritten(), output.getWriteNanos(), output.getSyncNanos());
+            completed = true;
+            return new SavedVolume(volume.file, output);
+        } finally {
+            if (!completed) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the volumes of earlier runs from the given number on, which a
+     * run with fewer volumes would otherwise leave behind.
+     */
+    private void deleteStaleVolumes(int first) {
+        for (int number = first; ; number++) {
+            File stale = new File(folder, volumeTitle(number) + ".pdf");
+            if (!stale.exists()) {
+                return;
+            }
+            if (!stale.delete()) {
+                System.err.println("Could not delete " + stale);
+                return;
+            }
+        }
+    }
+
+    private String volumeTitle(int number) {
+        return String.format(Locale.ROOT, "%s_%03d", PdfCreationEngine.baseName(pdfTitle), number);
+    }
+
+    private Volume newVolume(int number) {
+        File file;
+        String title;
+        if (options.isSplit()) {
+            title = volumeTitle(number);
+            file = new File(folder, title + ".pdf");
+        } else {
+            title = pdfTitle;
+            file = PdfCreationEngine.outputFile(folder, pdfTitle);
+        }
+        // In low-memory mode each volume keeps embedded streams in its own scratch file
+        PDDocument document = options.newDocument();
+        document.getDocumentInformation().setTitle(title);
+        return new Volume(number, file, document, new EmbeddedImages(options.getNearDuplicateDistance()));
+    }
+
+    private static SavedVolume await(Future<SavedVolume> save) throws IOException, InterruptedException {
+        try {
+            return save.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void closeQuietly(PDDocument document) {
+        try {
+            document.close();
+        } catch (IOException ignore) {
+            // Only the scratch buffers are released here.
+        }
+    }
+
+    /**
+     * The image streams of full volumes by content hash, copied to a scratch
+     * file that is created on first use and deleted when it is closed.
+     */
+    private static final class SpilledImages {
+        private final File directory;
+        private final Map<String, Long> offsets = new HashMap<>();
+        private FileChannel channel;
+
+        SpilledImages(File directory) {
+            this.directory = directory;
+        }
+
+        void write(String contentHash, COSStream stream) throws IOException {
+            if (offsets.containsKey(contentHash)) {
+                return;
+            }
+            if (channel == null) {
+                Path file = directory != null
+                        ? Files.createTempFile(directory.toPath(), ".pdf-creator-", ".images")
+                        : Files.createTempFile(".pdf-creator-", ".images");
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            long offset = channel.size();
+            // Not closed, which would close the channel
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel.position(offset)), 65536);
+            CosCodec.encode(stream, out);
+            out.flush();
+            offsets.put(contentHash, offset);
+        }
+
+        PDImageXObject read(String contentHash, PDDocument document) throws IOException {
+            Long offset = offsets.get(contentHash);
+            if (offset == null) {
+                throw new IOException("The image of an earlier volume was not kept: " + contentHash);
+            }
+            var in = new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 65536);
+            return new PDImageXObject(new PDStream(CosCodec.decode(in, document)), null);
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("Could not delete the scratch file of repeated images: " + e.getMessage());
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * A volume whose data is complete under its temporary name.
+     *
+     * @param file   the name the volume gets once the run finishes
+     * @param output the completed temporary file
+     */
+    private record SavedVolume(File file, OutputFile output) {
+    }
+
+    /**
+     * One output file while it is being assembled.
+     */
+    private class Volume {
+        final int number;
+        final File file;
+        final PDDocument document;
+        final EmbeddedImages embedded;
+        final Map<String, PDImageXObject> originals = new HashMap<>();
+        int pages;
+        long bytes = DOCUMENT_OVERHEAD;
+
+        Volume(int number, File file, PDDocument document, EmbeddedImages embedded) {
+            this.number = number;
+            this.file = file;
+            this.document = document;
+            this.embedded = embedded;
+        }
+
+        /**
+         * @return true if a page with an image of the given size would take
+         *         this volume over a limit; an empty volume is never full
+         */
+        boolean isFull(long imageBytes) {
+            if (pages == 0) {
+                return false;
+            }
+            int maxPages = options.getVolumePages();
+            long maxBytes = options.getVolumeMaxBytes();
+            return (maxPages > 0 && pages >= maxPages)
+                    || (maxBytes > 0 && bytes + PAGE_OVERHEAD + imageBytes > maxBytes);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package net.sosuisen;
+
+import java.awt.Color;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import javafx.application.Platform;
+
+/**
+ * Loads and initializes PDFBox and ImageIO before the first conversion needs
+ * them.
+ * <p>
+ * The first {@link PDDocument}, the first image reader and writer and the
+ * first Deflate stream load and initialize a few thousand classes, which
+ * otherwise makes the first page of the first PDF seconds slower than the
+ * rest. {@link #startInBackground()} converts a handful of tiny in-memory
+ * images on a low-priority thread while the window is shown.
+ * <p>
+ * {@link #main(String[])} is the training run for the class-data-sharing
+ * archive that the package phase writes to {@code target/app}. It runs the
+ * same conversions, converts a small folder with the engine, and, if a display
+ * is available, loads the main window without showing it, so that the archive
+ * holds the classes of the whole start-up path.
+ */
+public final class WarmUp {
+    private WarmUp() {
+    }
+
+    /**
+     * Starts the warm-up on a low-priority daemon thread.
+     */
+    static void startInBackground() {
+        Thread thread = Thread.ofPlatform().name("warm-up").daemon().unstarted(WarmUp::run);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Converts the sample images, reporting but otherwise ignoring failures;
+     * the warm-up only saves time.
+     */
+    static void run() {
+        try {
+            convertSamples();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Warm-up failed: " + e);
+        }
+    }
+
+    /**
+     * Encodes one small image per kind that the encoders treat differently,
+     * adds them as pages and saves the document to nowhere.
+     */
+    static void convertSamples() throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (OutputProfile profile : new OutputProfile[] { OutputProfile.ORIGINAL, OutputProfile.STANDARD }) {
+                addSample(document, sample(BufferedImage.TYPE_INT_RGB), "jpg", profile);
+                addSample(document, sample(BufferedImage.TYPE_INT_RGB), "png", profile);
+                addSample(document, sample(BufferedImage.TYPE_BYTE_GRAY), "png", profile);
+                addSample(document, sample(BufferedImage.TYPE_INT_ARGB), "png", profile);
+                addSample(document, sample(BufferedImage.TYPE_BYTE_INDEXED), "gif", profile);
+            }
+            document.save(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Training run for the class-data-sharing archive.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) throws Exception {
+        convertSamples();
+        Path folder = Files.createTempDirectory("pdf-creator-warm-up");
+        try {
+            for (int i = 1; i <= 3; i++) {
+                ImageIO.write(sample(BufferedImage.TYPE_INT_RGB), "jpg", folder.resolve(i + ".jpg").toFile());
+                ImageIO.write(sample(BufferedImage.TYPE_INT_ARGB), "png", folder.resolve(i + "a.png").toFile());
+            }
+            var options = PdfCreationOptions.builder().build();
+            try (var reporter = new ProgressReporter(ProgressReporter.DEFAULT_FRAMES_PER_SECOND, snapshot -> {
+            })) {
+                new PdfCreationEngine(options).createVolumes(folder.toFile(), "warm-up", reporter);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(folder)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        if (GraphicsEnvironment.isHeadless()) {
+            System.out.println("No display: JavaFX classes are loaded at first start instead of from the archive");
+        } else {
+            loadMainWindow();
+        }
+    }
+
+    /**
+     * Builds the main window's scene on the JavaFX Application Thread without
+     * showing it.
+     */
+    private static void loadMainWindow() throws Exception {
+        var done = new CountDownLatch(1);
+        Exception[] failure = new Exception[1];
+        Platform.startup(() -> {
+            var model = new Model();
+            try {
+                SceneBuilder.fromFxml("main.fxml").css("style.css").newController(model).build();
+            } catch (Exception e) {
+                failure[0] = e;
+            } finally {
+                model.close();
+                done.countDown();
+            }
+        });
+        done.await();
+        Platform.exit();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private static void addSample(PDDocument document, BufferedImage image, String format, OutputProfile profile)
+            throws IOException {
+        var data = new ByteArrayOutputStream();
+        ImageIO.write(image, format, data);
+        PdfCreationEngine.addImagePage(document,
+                ImageEncoder.createImage(data.toByteArray(), "warm-up." + format, document, profile), null);
+    }
+
+    private static BufferedImage sample(int type) {
+        var image = new BufferedImage(16, 16, type);
+        var g = image.createGraphics();
+        try {
+            g.setColor(Color.ORANGE);
+            g.fillRect(0, 0, 8, 16);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}